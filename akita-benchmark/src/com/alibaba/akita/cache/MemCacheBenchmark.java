@@ -0,0 +1,192 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alibaba.akita.cache;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and hit ratio of the MemCaches, read through by several threads:
+ * a miss puts the key, as the image and api caches do.
+ * Traces:
+ * zipfian - keys drawn from a Zipfian distribution (s=0.99) over KEY_SPACE keys;
+ * scan - the zipfian reads interleaved with scans of once-used keys,
+ *        like scrolling a long product feed.
+ * The hit ratio is hits / (hits + misses) of the aux counters in the result.
+ *
+ * In the package of the caches for their protected constructors. Build with jmh-core and
+ * jmh-generator-annprocess, run on the JVM with the classes of akita and android-all
+ * (the Android framework as of Robolectric) on the classpath, such as:
+ * java -cp ... org.openjdk.jmh.Main MemCacheBenchmark
+ *
+ * @author zhe.yangz
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class MemCacheBenchmark {
+    private static final int CACHE_SIZE = 2000;
+    private static final int KEY_SPACE = 100000;
+    private static final int TRACE_SIZE = 1 << 20;
+    private static final int TRACE_MASK = TRACE_SIZE - 1;
+    /** zipfian reads between two scans of the scan trace */
+    private static final int READS_PER_SCAN = 4 * CACHE_SIZE;
+    private static final int SCAN_LENGTH = 2 * CACHE_SIZE;
+
+    @Param({"lru", "sizedLru", "softRef", "hybrid", "tinyLfu"})
+    public String cacheType;
+
+    @Param({"zipfian", "scan"})
+    public String trace;
+
+    private MemCache<Integer, Integer> mCache;
+    private Integer[] mTrace;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mCache = newCache(cacheType);
+        mTrace = "scan".equals(trace) ? scanTrace(new Random(7)) : zipfianTrace(new Random(7));
+        // warm up the cache with one pass of the trace
+        for (Integer key : mTrace) {
+            if (mCache.get(key) == null) mCache.put(key, key);
+        }
+    }
+
+    private static MemCache<Integer, Integer> newCache(String type) {
+        if ("lru".equals(type)) return new MemCacheLruImpl<Integer, Integer>(CACHE_SIZE);
+        if ("sizedLru".equals(type)) return AkCacheManager.newMemLruCache(CACHE_SIZE);
+        if ("softRef".equals(type)) return AkCacheManager.newMemSoftRefCache();
+        if ("hybrid".equals(type)) return AkCacheManager.newMemHybridCache(CACHE_SIZE, null);
+        if ("tinyLfu".equals(type)) return AkCacheManager.newMemTinyLfuCache(CACHE_SIZE);
+        throw new IllegalArgumentException(type);
+    }
+
+    private static Integer[] zipfianTrace(Random random) {
+        Zipfian zipfian = new Zipfian(KEY_SPACE, 0.99);
+        Integer[] keys = new Integer[TRACE_SIZE];
+        for (int i = 0; i < TRACE_SIZE; i++) {
+            keys[i] = zipfian.next(random);
+        }
+        return keys;
+    }
+
+    private static Integer[] scanTrace(Random random) {
+        Zipfian zipfian = new Zipfian(KEY_SPACE, 0.99);
+        Integer[] keys = new Integer[TRACE_SIZE];
+        int scanned = KEY_SPACE; // the scanned keys are beyond the zipfian ones
+        int i = 0;
+        while (i < TRACE_SIZE) {
+            for (int n = 0; n < READS_PER_SCAN && i < TRACE_SIZE; n++) {
+                keys[i++] = zipfian.next(random);
+            }
+            for (int n = 0; n < SCAN_LENGTH && i < TRACE_SIZE; n++) {
+                keys[i++] = scanned++;
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Position of a reader thread in the trace, the threads start apart
+     */
+    @State(Scope.Thread)
+    public static class Reader {
+        int index;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            index = new Random().nextInt(TRACE_SIZE);
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class HitCounters {
+        public long hits;
+        public long misses;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            hits = 0;
+            misses = 0;
+        }
+    }
+
+    @Benchmark
+    public Integer readThrough(Reader reader, HitCounters counters) {
+        Integer key = mTrace[reader.index++ & TRACE_MASK];
+        Integer value = mCache.get(key);
+        if (value == null) {
+            counters.misses++;
+            mCache.put(key, key);
+        } else {
+            counters.hits++;
+        }
+        return value;
+    }
+
+    /**
+     * Zipfian ranks by the inverse of the precomputed cdf, rank 0 is the most frequent
+     */
+    static class Zipfian {
+        private final double[] mCdf;
+
+        Zipfian(int n, double s) {
+            mCdf = new double[n];
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += 1 / Math.pow(i + 1, s);
+                mCdf[i] = sum;
+            }
+            for (int i = 0; i < n; i++) {
+                mCdf[i] /= sum;
+            }
+        }
+
+        int next(Random random) {
+            double u = random.nextDouble();
+            int low = 0;
+            int high = mCdf.length - 1;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (mCdf[mid] < u) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
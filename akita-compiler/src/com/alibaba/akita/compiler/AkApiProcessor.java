@@ -0,0 +1,296 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alibaba.akita.compiler;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * Annotation processor generating the implementation class of each @AkAPI interface,
+ * which binds the typed params directly and executes the method's InvokePlan,
+ * so Akita.createAPI() needs no dynamic proxy and no reflective dispatch per call.
+ * The generated class of pkg.Outer$Api is pkg.Outer_Api_AkImpl.
+ * An interface having any method that can not be generated is left to the dynamic proxy.
+ *
+ * @author zhe.yangz
+ */
+public class AkApiProcessor extends AbstractProcessor {
+    static final String IMPL_SUFFIX = "_AkImpl";
+
+    private static final String AK_API = "com.alibaba.akita.annotation.AkAPI";
+    private static final String AK_PARAM = "com.alibaba.akita.annotation.AkParam";
+    private static final String AK_INVOKE_EXCEPTION = "com.alibaba.akita.exception.AkInvokeException";
+    private static final String AK_SERVER_STATUS_EXCEPTION =
+            "com.alibaba.akita.exception.AkServerStatusException";
+    private static final String INVOKE_PLAN = "com.alibaba.akita.proxy.InvokePlan";
+    private static final String INVOKE_PARAMS = "com.alibaba.akita.proxy.InvokeParams";
+    private static final String API_CALLBACK = "com.alibaba.akita.proxy.ApiCallback";
+    private static final String FUTURE = "java.util.concurrent.Future";
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(AK_API);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        TypeElement akApi = processingEnv.getElementUtils().getTypeElement(AK_API);
+        if (akApi == null) return false;
+
+        LinkedHashSet<TypeElement> apis = new LinkedHashSet<TypeElement>();
+        for (Element e : roundEnv.getElementsAnnotatedWith(akApi)) {
+            Element type = (e.getKind() == ElementKind.METHOD) ? e.getEnclosingElement() : e;
+            if (type.getKind() == ElementKind.INTERFACE) {
+                apis.add((TypeElement) type);
+            }
+        }
+        for (TypeElement api : apis) {
+            generate(api);
+        }
+        return false;
+    }
+
+    private void generate(TypeElement api) {
+        Elements elements = processingEnv.getElementUtils();
+        if (!api.getTypeParameters().isEmpty()) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                    api.getQualifiedName() + " uses the dynamic proxy: it is generic", api);
+            return;
+        }
+        List<ExecutableElement> methods = new ArrayList<ExecutableElement>();
+        for (ExecutableElement m : ElementFilter.methodsIn(elements.getAllMembers(api))) {
+            if (m.getEnclosingElement().getKind() != ElementKind.INTERFACE) continue;
+            String reason = unsupportedReason(m);
+            if (reason != null) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                        api.getQualifiedName() + " uses the dynamic proxy: " + reason, m);
+                return;
+            }
+            methods.add(m);
+        }
+
+        String pkg = elements.getPackageOf(api).getQualifiedName().toString();
+        String binaryName = elements.getBinaryName(api).toString();
+        String simpleName = (pkg.length() == 0 ? binaryName : binaryName.substring(pkg.length() + 1))
+                .replace('$', '_') + IMPL_SUFFIX;
+        String qualifiedName = pkg.length() == 0 ? simpleName : pkg + "." + simpleName;
+
+        StringBuilder sb = new StringBuilder();
+        if (pkg.length() > 0) {
+            sb.append("package ").append(pkg).append(";\n\n");
+        }
+        sb.append("/**\n * Generated by AkApiProcessor, do not edit.\n */\n");
+        sb.append("public final class ").append(simpleName)
+                .append(" implements ").append(api.getQualifiedName()).append(" {\n");
+        for (int i = 0; i < methods.size(); i++) {
+            writePlanField(sb, api, methods.get(i), i);
+        }
+        for (int i = 0; i < methods.size(); i++) {
+            writeMethod(sb, methods.get(i), i);
+        }
+        sb.append("}\n");
+
+        try {
+            JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedName, api);
+            Writer writer = file.openWriter();
+            try {
+                writer.write(sb.toString());
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Failed to generate " + qualifiedName + ": " + e, api);
+        }
+    }
+
+    /**
+     * @return null if the method can be generated
+     */
+    private String unsupportedReason(ExecutableElement m) {
+        if (findAnnotation(m, AK_API) == null) {
+            return m.getSimpleName() + " has no @AkAPI";
+        }
+        if (!m.getTypeParameters().isEmpty()) {
+            return m.getSimpleName() + " is generic";
+        }
+        if (callbackIndex(m) >= 0) {
+            if (m.getReturnType().getKind() != TypeKind.VOID && futureResult(m) == null) {
+                return m.getSimpleName() + " has ApiCallback but returns neither void nor Future";
+            }
+            return null;
+        }
+        if (futureResult(m) != null) {
+            return null; // failures are delivered by the Future
+        }
+        if (m.getReturnType().getKind() != TypeKind.DECLARED
+                && m.getReturnType().getKind() != TypeKind.ARRAY) {
+            return m.getSimpleName() + " does not return an object";
+        }
+        if (!declares(m, AK_INVOKE_EXCEPTION) || !declares(m, AK_SERVER_STATUS_EXCEPTION)) {
+            return m.getSimpleName() + " does not throw AkInvokeException and AkServerStatusException";
+        }
+        return null;
+    }
+
+    /**
+     * @return index of the ApiCallback<T> param, which must be the last one; -1 if none
+     */
+    private static int callbackIndex(ExecutableElement m) {
+        List<? extends VariableElement> params = m.getParameters();
+        if (params.isEmpty()) return -1;
+        int last = params.size() - 1;
+        return (typeArgument(params.get(last).asType(), API_CALLBACK) != null) ? last : -1;
+    }
+
+    /**
+     * @return T if the method returns Future<T>, else null
+     */
+    private static TypeMirror futureResult(ExecutableElement m) {
+        return typeArgument(m.getReturnType(), FUTURE);
+    }
+
+    /**
+     * @return T if type is rawType<T>, else null
+     */
+    private static TypeMirror typeArgument(TypeMirror type, String rawType) {
+        if (type.getKind() != TypeKind.DECLARED) return null;
+        DeclaredType declared = (DeclaredType) type;
+        if (!rawType.equals(((TypeElement) declared.asElement()).getQualifiedName().toString())
+                || declared.getTypeArguments().size() != 1) {
+            return null;
+        }
+        TypeMirror arg = declared.getTypeArguments().get(0);
+        return (arg.getKind() == TypeKind.DECLARED || arg.getKind() == TypeKind.ARRAY) ? arg : null;
+    }
+
+    private boolean declares(ExecutableElement m, String exception) {
+        Types types = processingEnv.getTypeUtils();
+        TypeElement ex = processingEnv.getElementUtils().getTypeElement(exception);
+        if (ex == null) return false;
+        for (TypeMirror thrown : m.getThrownTypes()) {
+            if (types.isSubtype(ex.asType(), thrown)) return true;
+        }
+        return false;
+    }
+
+    private void writePlanField(StringBuilder sb, TypeElement api, ExecutableElement m, int idx) {
+        Types types = processingEnv.getTypeUtils();
+        sb.append("    private static final ").append(INVOKE_PLAN).append(" PLAN").append(idx)
+                .append(" = ").append(INVOKE_PLAN).append(".of(")
+                .append(api.getQualifiedName()).append(".class, \"")
+                .append(m.getSimpleName()).append("\"");
+        for (VariableElement p : m.getParameters()) {
+            sb.append(", ").append(types.erasure(p.asType())).append(".class");
+        }
+        sb.append(");\n");
+    }
+
+    private void writeMethod(StringBuilder sb, ExecutableElement m, int idx) {
+        List<? extends VariableElement> params = m.getParameters();
+        int callbackIdx = callbackIndex(m);
+        TypeMirror futureResult = futureResult(m);
+        TypeMirror returnType = m.getReturnType();
+        // the cast of execute()'s Object to a parameterized type is unchecked
+        boolean uncheckedCast = callbackIdx < 0 && futureResult == null && !returnType.toString()
+                .equals(processingEnv.getTypeUtils().erasure(returnType).toString());
+        sb.append("\n    @Override\n");
+        if (uncheckedCast) sb.append("    @SuppressWarnings(\"unchecked\")\n");
+        sb.append("    public ").append(returnType).append(" ")
+                .append(m.getSimpleName()).append("(");
+        for (int i = 0; i < params.size(); i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(params.get(i).asType()).append(" p").append(i);
+        }
+        sb.append(")");
+        List<? extends TypeMirror> thrown = m.getThrownTypes();
+        for (int i = 0; i < thrown.size(); i++) {
+            sb.append(i == 0 ? " throws " : ", ").append(thrown.get(i));
+        }
+        sb.append(" {\n");
+        sb.append("        ").append(INVOKE_PARAMS).append(" params = new ")
+                .append(INVOKE_PARAMS).append("();\n");
+        for (int i = 0; i < params.size(); i++) {
+            AnnotationMirror akParam = findAnnotation(params.get(i), AK_PARAM);
+            if (akParam == null) continue;
+            String name = annotationValue(akParam, "value");
+            String encode = annotationValue(akParam, "encode");
+            String encodeLiteral = (encode == null) ? "null" : "\"" + escape(encode) + "\"";
+            TypeMirror type = params.get(i).asType();
+            if ("$paramMap".equals(name)) {
+                sb.append("        params.putMap(p").append(i).append(", ")
+                        .append(encodeLiteral).append(");\n");
+            } else if ("$filesToSend".equals(name)) {
+                sb.append("        params.putFiles(p").append(i).append(");\n");
+            } else if (type.getKind().isPrimitive()) {
+                sb.append("        params.put(\"").append(escape(name)).append("\", String.valueOf(p")
+                        .append(i).append("), ").append(encodeLiteral).append(");\n");
+            } else {
+                sb.append("        params.put(\"").append(escape(name)).append("\", p")
+                        .append(i).append(", ").append(encodeLiteral).append(");\n");
+            }
+        }
+        if (callbackIdx >= 0 || futureResult != null) {
+            TypeMirror result = (callbackIdx >= 0)
+                    ? typeArgument(params.get(callbackIdx).asType(), API_CALLBACK) : futureResult;
+            sb.append("        ").append(m.getReturnType().getKind() == TypeKind.VOID ? "" : "return ")
+                    .append("PLAN").append(idx).append(".<").append(result).append(">submit(params, ")
+                    .append(callbackIdx >= 0 ? "p" + callbackIdx : "null").append(");\n");
+        } else {
+            sb.append("        return (").append(returnType)
+                    .append(") PLAN").append(idx).append(".execute(params);\n");
+        }
+        sb.append("    }\n");
+    }
+
+    private static AnnotationMirror findAnnotation(Element e, String annotation) {
+        for (AnnotationMirror am : e.getAnnotationMirrors()) {
+            if (annotation.equals(am.getAnnotationType().toString())) return am;
+        }
+        return null;
+    }
+
+    private static String annotationValue(AnnotationMirror am, String name) {
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry
+                : am.getElementValues().entrySet()) {
+            if (name.equals(entry.getKey().getSimpleName().toString())) {
+                return String.valueOf(entry.getValue().getValue());
+            }
+        }
+        return null;
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alibaba.akita.io;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.TestCase;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HttpCache through HttpInvoker.get against a local stub server, which counts
+ * the requests of each path.
+ *
+ * In the package of the cache for its package-private methods. Run on the JVM with
+ * junit, the classes of akita and android-all (the Android framework as of Robolectric)
+ * on the classpath, such as:
+ * java -cp ... junit.textui.TestRunner com.alibaba.akita.io.HttpCacheTest
+ *
+ * @author zhe.yangz
+ */
+public class HttpCacheTest extends TestCase {
+    private HttpServer mServer;
+    private String mBaseUrl;
+    private File mDir;
+    private final ConcurrentHashMap<String, AtomicInteger> mRequests =
+            new ConcurrentHashMap<String, AtomicInteger>();
+    private volatile String mLastIfNoneMatch;
+
+    @Override
+    protected void setUp() throws Exception {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/", new StubHandler());
+        mServer.start();
+        mBaseUrl = "http://127.0.0.1:" + mServer.getAddress().getPort();
+
+        mDir = File.createTempFile("akhttpcache", "");
+        mDir.delete();
+        HttpInvoker.enableHttpCache(mDir, 1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        HttpCache httpCache = HttpInvoker.getHttpCache();
+        if (httpCache != null) httpCache.clear();
+        HttpInvoker.disableHttpCache();
+        mDir.delete();
+        mServer.stop(0);
+    }
+
+    public void testStoresOk() throws Exception {
+        assertEquals("v1", HttpInvoker.get(mBaseUrl + "/etag"));
+        assertNotNull(HttpInvoker.getHttpCache().get(mBaseUrl + "/etag"));
+        assertTrue(HttpInvoker.getHttpCache().getSize() > 0);
+    }
+
+    public void testFreshHitSkipsNetwork() throws Exception {
+        assertEquals("fresh", HttpInvoker.get(mBaseUrl + "/fresh"));
+        assertEquals("fresh", HttpInvoker.get(mBaseUrl + "/fresh"));
+        assertEquals(1, requests("/fresh"));
+    }
+
+    public void testRevalidatesWithEtag() throws Exception {
+        assertEquals("v1", HttpInvoker.get(mBaseUrl + "/etag"));
+        assertNull(mLastIfNoneMatch);
+
+        // served from the cache on 304
+        assertEquals("v1", HttpInvoker.get(mBaseUrl + "/etag"));
+        assertEquals("\"v1\"", mLastIfNoneMatch);
+        assertEquals(2, requests("/etag"));
+    }
+
+    public void testNoStoreNotCached() throws Exception {
+        assertEquals("secret", HttpInvoker.get(mBaseUrl + "/nostore"));
+        assertEquals("secret", HttpInvoker.get(mBaseUrl + "/nostore"));
+        assertEquals(2, requests("/nostore"));
+        assertNull(HttpInvoker.getHttpCache().get(mBaseUrl + "/nostore"));
+    }
+
+    public void testCredentialsBypassCache() throws Exception {
+        Header[] headers = new Header[] { new BasicHeader("Cookie", "sid=1") };
+        assertEquals("fresh", HttpInvoker.get(mBaseUrl + "/fresh", headers));
+        assertNull(HttpInvoker.getHttpCache().get(mBaseUrl + "/fresh"));
+
+        // the cached response isn't served to the request with credentials
+        assertEquals("fresh", HttpInvoker.get(mBaseUrl + "/fresh"));
+        assertEquals("fresh", HttpInvoker.get(mBaseUrl + "/fresh", headers));
+        assertEquals(3, requests("/fresh"));
+    }
+
+    public void testVaryNotCached() throws Exception {
+        assertEquals("en", HttpInvoker.get(mBaseUrl + "/vary"));
+        assertNull(HttpInvoker.getHttpCache().get(mBaseUrl + "/vary"));
+    }
+
+    public void testTrimsLeastRecentlyUsed() throws Exception {
+        HttpCache httpCache = new HttpCache(mDir, 300);
+        httpCache.store("http://a", newResponse(100));
+        httpCache.store("http://b", newResponse(100));
+        assertNotNull(httpCache.get("http://a"));
+        httpCache.store("http://c", newResponse(100));
+
+        assertNull(httpCache.get("http://b"));
+        assertNotNull(httpCache.get("http://a"));
+        assertNotNull(httpCache.get("http://c"));
+        assertTrue(httpCache.getSize() <= 300);
+        httpCache.clear();
+    }
+
+    private int requests(String path) {
+        AtomicInteger count = mRequests.get(path);
+        return (count == null) ? 0 : count.get();
+    }
+
+    private static HttpResponse newResponse(int bodyLength) {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        response.addHeader("ETag", "\"v1\"");
+        response.setEntity(new ByteArrayEntity(new byte[bodyLength]));
+        return response;
+    }
+
+    /**
+     * /fresh max-age, /etag no-cache with an ETag, /nostore no-store, /vary Vary
+     */
+    private class StubHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String path = exchange.getRequestURI().getPath();
+            mRequests.putIfAbsent(path, new AtomicInteger());
+            mRequests.get(path).incrementAndGet();
+
+            Headers headers = exchange.getResponseHeaders();
+            String body;
+            if ("/fresh".equals(path)) {
+                headers.add("Cache-Control", "max-age=60");
+                body = "fresh";
+            } else if ("/etag".equals(path)) {
+                mLastIfNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+                headers.add("Cache-Control", "no-cache");
+                headers.add("ETag", "\"v1\"");
+                if ("\"v1\"".equals(mLastIfNoneMatch)) {
+                    exchange.sendResponseHeaders(HttpStatus.SC_NOT_MODIFIED, -1);
+                    exchange.close();
+                    return;
+                }
+                body = "v1";
+            } else if ("/nostore".equals(path)) {
+                headers.add("Cache-Control", "no-store");
+                headers.add("ETag", "\"v1\"");
+                body = "secret";
+            } else if ("/vary".equals(path)) {
+                headers.add("ETag", "\"v1\"");
+                headers.add("Vary", "Accept-Language");
+                body = "en";
+            } else {
+                exchange.sendResponseHeaders(HttpStatus.SC_NOT_FOUND, -1);
+                exchange.close();
+                return;
+            }
+
+            byte[] bytes = body.getBytes("UTF-8");
+            headers.add("Content-Type", "text/plain; charset=UTF-8");
+            exchange.sendResponseHeaders(HttpStatus.SC_OK, bytes.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+        }
+    }
+}
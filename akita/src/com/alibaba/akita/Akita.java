@@ -15,6 +15,7 @@
 package com.alibaba.akita;
 
 import com.alibaba.akita.proxy.ProxyFactory;
+import com.alibaba.akita.util.Log;
 
 /**
  * Created with IntelliJ IDEA.
@@ -23,11 +24,42 @@ import com.alibaba.akita.proxy.ProxyFactory;
  * Time: 下午4:44
  */
 public class Akita {
+    private static final String TAG = "Akita";
     public static final String XMLNS = "http://schemas.alibaba.com/apk/res/akita";
     public static final String UTF_8 = "UTF-8";
 
 
+    /**
+     * Suffix of the API implementation generated by akita-compiler's AkApiProcessor
+     */
+    private static final String API_IMPL_SUFFIX = "_AkImpl";
+
+    /**
+     * Create the API instance, use the generated implementation if exists,
+     * otherwise the dynamic proxy.
+     * Note: keep the generated classes when using proguard, -keep class **_AkImpl { <init>(); }
+     * @param clazz API interface
+     * @param <T>
+     * @return
+     */
+    @SuppressWarnings("unchecked")
     public static <T> T createAPI(Class<T> clazz) {
+        try {
+            Class<?> implClazz = Class.forName(
+                    clazz.getName().replace('$', '_') + API_IMPL_SUFFIX, true, clazz.getClassLoader());
+            if (clazz.isAssignableFrom(implClazz)) {
+                return (T) implClazz.newInstance();
+            }
+        } catch (ClassNotFoundException e) {
+            // no generated implementation, use the dynamic proxy
+        } catch (InstantiationException e) {
+            Log.w(TAG, e.toString(), e);
+        } catch (IllegalAccessException e) {
+            Log.w(TAG, e.toString(), e);
+        } catch (LinkageError e) {
+            // such as ExceptionInInitializerError of its InvokePlans, use the dynamic proxy
+            Log.w(TAG, e.toString(), e);
+        }
         return ProxyFactory.getProxy(clazz);
     }
 
@@ -0,0 +1,44 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.akita.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Cache the response of an API method, keyed by the resolved url and params.
+ * Don't use it on methods having always-changing params such as timestamp,
+ * and note that the cached result object is shared by the callers.
+ * Call ApiCache.init(context) to also persist the responses in SimpleCache.
+ * @author zhe.yangz
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD})
+public @interface AkCache {
+    /**
+     * Seconds the cached response is fresh
+     * @return
+     */
+    public int ttl();
+
+    /**
+     * Seconds after ttl the stale response is still returned immediately,
+     * while it is refreshed in background. Ignored with @AkSignature, as the
+     * signature of the request refreshed in background maybe stale.
+     * @return
+     */
+    public int staleWhileRevalidate() default 0;
+}
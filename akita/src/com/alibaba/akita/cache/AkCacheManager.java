@@ -17,15 +17,18 @@
 
 package com.alibaba.akita.cache;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.os.Build;
+import com.alibaba.akita.util.ImageUtil;
 import com.alibaba.akita.util.Log;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 
 /**
  * Client Cache Universal Solution
@@ -33,18 +36,109 @@ import java.io.FileOutputStream;
  */
 public class AkCacheManager {
 
+    /**
+     * LRU MemCache of at most maxSize entries, on every API level
+     * @param maxSize max count of entries
+     * @return
+     */
     public static <K, V> MemCache<K, V> newMemLruCache(int maxSize) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
-            return new MemCacheLruImpl<K, V>(maxSize);
-        } else {
-            return new MemCacheDummyImpl<K, V>(maxSize);
-        }
+        return new MemCacheSizedLruImpl<K, V>(maxSize, null, null);
+    }
+
+    /**
+     * LRU MemCache bounded by the total size of the values, on every API level
+     * @param maxSize max total size, in the unit of weigher
+     * @param weigher such as bitmapWeigher(), null to count 1 per entry
+     * @param evictionListener maybe null
+     * @return
+     */
+    public static <K, V> MemCache<K, V> newMemLruCache(int maxSize, Weigher<K, V> weigher,
+                                                       EvictionListener<K, V> evictionListener) {
+        return new MemCacheSizedLruImpl<K, V>(maxSize, weigher, evictionListener);
+    }
+
+    /**
+     * Striped W-TinyLFU MemCache of at most maxSize entries, for hot caches read by
+     * many threads; its hit rate stays up under scans of once-used entries.
+     * @param maxSize max count of entries
+     * @return
+     */
+    public static <K, V> MemCache<K, V> newMemTinyLfuCache(int maxSize) {
+        return new MemCacheTinyLfuImpl<K, V>(maxSize, maxSize, null, null);
+    }
+
+    /**
+     * Striped W-TinyLFU MemCache bounded by the total size of the values
+     * @param maxSize max total size, in the unit of weigher
+     * @param expectedEntries about how many entries fit in maxSize
+     * @param weigher null to count 1 per entry
+     * @param evictionListener maybe null
+     * @return
+     */
+    public static <K, V> MemCache<K, V> newMemTinyLfuCache(int maxSize, int expectedEntries,
+                                                           Weigher<K, V> weigher,
+                                                           EvictionListener<K, V> evictionListener) {
+        return new MemCacheTinyLfuImpl<K, V>(maxSize, expectedEntries, weigher, evictionListener);
+    }
+
+    /**
+     * LRU MemCache of bitmaps taking 1/8 of the app's memory class
+     * @param context
+     * @return
+     */
+    public static <K> MemCache<K, Bitmap> newBitmapMemCache(Context context) {
+        return newMemLruCache(getMemCacheBudget(context, 8), AkCacheManager.<K>bitmapWeigher(), null);
+    }
+
+    /**
+     * @param context
+     * @param divisor such as 8 for 1/8
+     * @return bytes of the app's memory class divided by divisor
+     */
+    public static int getMemCacheBudget(Context context, int divisor) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        return am.getMemoryClass() * 1024 * 1024 / divisor;
+    }
+
+    /**
+     * @return Weigher counting the bytes of bitmaps
+     */
+    public static <K> Weigher<K, Bitmap> bitmapWeigher() {
+        return new Weigher<K, Bitmap>() {
+            @Override
+            public int sizeOf(K key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+    }
+
+    /**
+     * @return Weigher counting the chars of strings
+     */
+    public static <K> Weigher<K, String> stringWeigher() {
+        return new Weigher<K, String>() {
+            @Override
+            public int sizeOf(K key, String value) {
+                return value.length();
+            }
+        };
     }
 
     public static <K, V> MemCache<K, V> newMemSoftRefCache() {
         return new MemCacheSoftRefImpl<K, V>();
     }
 
+    /**
+     * Strong LRU of at most hardMaxSize, whose evicted entries stay softly referenced
+     * until GC needs the memory
+     * @param hardMaxSize max total size of the strong tier, in the unit of weigher
+     * @param weigher such as bitmapWeigher(), null to count 1 per entry
+     * @return
+     */
+    public static <K, V> MemCache<K, V> newMemHybridCache(int hardMaxSize, Weigher<K, V> weigher) {
+        return new MemCacheHybridImpl<K, V>(hardMaxSize, weigher);
+    }
+
     /**
      * default reserve data 24 hours (-1)
      * @param context
@@ -63,6 +157,21 @@ public class AkCacheManager {
                 context, "simplecache.db", tagName, 1, reserveTimeHours * 3600 * 1000);
     }
 
+    /**
+     * SimpleCache with a read-through LRU MemCache of memCacheSize values in front,
+     * for the values read again and again
+     * @param context
+     * @param tagName
+     * @param reserveTimeHours
+     * @param memCacheSize
+     * @return
+     */
+    public static SimpleCache getSimpleCache(Context context, String tagName, int reserveTimeHours,
+                                             int memCacheSize) {
+        return withMemCache(new SimpleCacheSqliteImpl(
+                context, "simplecache.db", tagName, 1, reserveTimeHours * 3600 * 1000), memCacheSize);
+    }
+
     /**
      * reserve data 365 days（0）
      * @param context
@@ -81,14 +190,58 @@ public class AkCacheManager {
     public static SimpleCache getAppData(Context context, String tagName) {
         return new SimpleCacheSqliteImpl(context, "appdata.db", tagName, 1, 0);
     }
+
+    /**
+     * reserve data 365 days（0）, with a read-through LRU MemCache of memCacheSize values in front
+     * @param context
+     * @param tagName
+     * @param memCacheSize
+     * @return
+     */
+    public static SimpleCache getAppData(Context context, String tagName, int memCacheSize) {
+        return withMemCache(new SimpleCacheSqliteImpl(context, "appdata.db", tagName, 1, 0),
+                memCacheSize);
+    }
+
+    /**
+     * @param cache
+     * @param memCacheSize max count of values in memory
+     * @return cache with a read-through LRU MemCache in front, see SimpleCacheMemTierImpl;
+     * the values are kept in memory as long as in a SimpleCacheSqliteImpl, otherwise until evicted
+     */
+    public static SimpleCache withMemCache(SimpleCache cache, int memCacheSize) {
+        long reserveTime = (cache instanceof SimpleCacheSqliteImpl)
+                ? ((SimpleCacheSqliteImpl) cache).getReserveTime() : Long.MAX_VALUE;
+        return new SimpleCacheMemTierImpl(cache,
+                AkCacheManager.<String, CacheObject>newMemLruCache(memCacheSize), reserveTime);
+    }
     
-    public static FilesCache<Bitmap> getImageFilesCache(Context context) {
+    /** the folder's journal has one writer, so one instance in the process */
+    private static FilesCache<Bitmap> sImageFilesCache;
+
+    /**
+     * Image cache on sd card, shared by the whole process.
+     * See FilesCacheSDFoldersImpl.newRawSink() to save the images
+     * as downloaded, put() encodes the bitmap again.
+     * @param context
+     * @return
+     */
+    public static synchronized FilesCache<Bitmap> getImageFilesCache(Context context) {
+        if (sImageFilesCache == null) {
+            Context appContext = context.getApplicationContext();
+            sImageFilesCache = newImageFilesCache(appContext != null ? appContext : context);
+        }
+        return sImageFilesCache;
+    }
+
+    private static FilesCache<Bitmap> newImageFilesCache(Context context) {
         return new FilesCacheSDFoldersImpl<Bitmap>(context, "image0") {
 
             @Override
             protected Bitmap xform(String fileAbsoPath) {
                 try {
-                    return BitmapFactory.decodeFile(fileAbsoPath);
+                    // the file maybe the raw downloaded image, decode it as HttpInvoker does
+                    return ImageUtil.decodeSampledBitmapFromFile(fileAbsoPath, 682, 682);
                 }
                 catch (OutOfMemoryError ooe) {
                     Log.e(TAG, ooe.toString(), ooe);
@@ -106,7 +259,11 @@ public class AkCacheManager {
                     dir.mkdirs();
                     File f = new File(dir, fileName);
                     fos = new BufferedOutputStream(new FileOutputStream(f));
-                    v.compress(Bitmap.CompressFormat.JPEG, 75, fos);
+                    if (v.hasAlpha()) {
+                        v.compress(Bitmap.CompressFormat.PNG, 100, fos);
+                    } else {
+                        v.compress(Bitmap.CompressFormat.JPEG, 75, fos);
+                    }
                 } catch (Exception e) {
                     e.printStackTrace();
                 } finally {
@@ -122,5 +279,84 @@ public class AkCacheManager {
         };
     }
 
+    /**
+     * Image pipeline: an LRU of 1/8 of the memory class, the softly referenced images
+     * evicted from it, then the sd card cache of getImageFilesCache()
+     * @param context
+     * @return
+     */
+    public static TieredCache<String, Bitmap> newImageTieredCache(Context context) {
+        return newImageTieredCache(context, getImageFilesCache(context));
+    }
+
+    /**
+     * Image pipeline: an LRU of 1/8 of the memory class, the softly referenced images
+     * evicted from it, then filesCache, which is not changed; the disk tier reads
+     * a FilesCacheSDFoldersImpl past its own memory tier.
+     * The loaders should save the images into filesCache themselves, such as by
+     * FilesCacheSDFoldersImpl.newRawSink(), see RemoteImageLoaderJob.
+     * @param context
+     * @param filesCache
+     * @return
+     */
+    public static TieredCache<String, Bitmap> newImageTieredCache(Context context,
+                                                                 FilesCache<Bitmap> filesCache) {
+        ArrayList<TieredCache.Tier<String, Bitmap>> tiers = new ArrayList<TieredCache.Tier<String, Bitmap>>();
+        tiers.add(new TieredCache.MemCacheTier<String, Bitmap>("memory",
+                getMemCacheBudget(context, 8), AkCacheManager.<String>bitmapWeigher()));
+        tiers.add(new TieredCache.MemCacheTier<String, Bitmap>("soft",
+                AkCacheManager.<String, Bitmap>newMemSoftRefCache()));
+        tiers.add(new TieredCache.FilesCacheTier<Bitmap>("disk", filesCache, false));
+        return new TieredCache<String, Bitmap>(tiers);
+    }
+
+    /** the segments have one writer, so one instance in the process */
+    private static FilesCache<Bitmap> sImagePackFilesCache;
+
+    /**
+     * Image cache on sd card packing the images into a few large files,
+     * better than getImageFilesCache() for a lot of small images such as thumbnails.
+     * Shared by the whole process. See FilesCachePackImpl.newRawSink() to save
+     * the images as downloaded, put() encodes the bitmap again.
+     * @param context
+     * @return
+     */
+    public static synchronized FilesCache<Bitmap> getImagePackFilesCache(Context context) {
+        if (sImagePackFilesCache == null) {
+            Context appContext = context.getApplicationContext();
+            sImagePackFilesCache = newImagePackFilesCache(appContext != null ? appContext : context);
+        }
+        return sImagePackFilesCache;
+    }
+
+    private static FilesCache<Bitmap> newImagePackFilesCache(Context context) {
+        return new FilesCachePackImpl<Bitmap>(context, "imagepack0") {
+
+            @Override
+            protected Bitmap xform(ByteBuffer data) {
+                try {
+                    byte[] bytes = new byte[data.remaining()];
+                    data.get(bytes);
+                    return ImageUtil.decodeSampledBitmapFromByteArray(bytes, 0, bytes.length, 682, 682);
+                }
+                catch (OutOfMemoryError ooe) {
+                    Log.e(TAG, ooe.toString(), ooe);
+                }
+                return null;
+            }
+
+            @Override
+            protected byte[] output(Bitmap v) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream(16 * 1024);
+                if (v.hasAlpha()) {
+                    v.compress(Bitmap.CompressFormat.PNG, 100, bos);
+                } else {
+                    v.compress(Bitmap.CompressFormat.JPEG, 75, bos);
+                }
+                return bos.toByteArray();
+            }
+        };
+    }
+
 
 }
@@ -0,0 +1,330 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alibaba.akita.cache;
+
+import com.alibaba.akita.util.Log;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of a disk cache's entries in LRU order, with the running total size,
+ * persisted as an append-only journal of lines:
+ * <pre>
+ * PUT key size time
+ * READ key time
+ * DEL key
+ * </pre>
+ * Replaying the journal at startup rebuilds the index without walking the cache folders.
+ * The journal is compacted to one PUT line per entry when the redundant lines pile up.
+ * Reads only touch the index in memory, their lines and the compaction wait for sync(),
+ * which the cache calls on its writer thread.
+ * The entries' files are managed by the cache, the journal only tells which ones to evict.
+ * @author zhe.yangz
+ */
+class DiskLruJournal {
+    private static final String TAG = "DiskLruJournal";
+    private static final String MAGIC = "akita.journal";
+    private static final String VERSION = "1";
+    private static final String PUT = "PUT";
+    private static final String READ = "READ";
+    private static final String DEL = "DEL";
+    private static final int COMPACT_THRESHOLD = 2000;
+
+    static class Entry {
+        final String key;
+        long size;
+        long accessTime;
+
+        Entry(String key, long size, long accessTime) {
+            this.key = key;
+            this.size = size;
+            this.accessTime = accessTime;
+        }
+    }
+
+    private final File mJournalFile;
+    private final LinkedHashMap<String, Entry> mIndex =
+            new LinkedHashMap<String, Entry>(64, 0.75f, true);
+    private long mSize = 0;
+    private int mRedundantCount = 0;
+    private Writer mWriter;
+    /** READ lines not written yet */
+    private final StringBuilder mPendingReads = new StringBuilder();
+
+    /**
+     * @param journalFile journal file, in the cache's directory
+     */
+    DiskLruJournal(File journalFile) {
+        mJournalFile = journalFile;
+    }
+
+    /**
+     * Replay the journal
+     * @return false if there is no valid journal, then the caller should rebuild()
+     */
+    synchronized boolean load() {
+        if (!mJournalFile.exists()) return false;
+        BufferedReader reader = null;
+        int lineCount = 0;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(mJournalFile), "US-ASCII"), 8192);
+            if (!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine())) {
+                return false;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                replay(line);
+                lineCount++;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "broken journal " + mJournalFile, e);
+            return false;
+        } finally {
+            closeQuietly(reader);
+        }
+        mRedundantCount = lineCount - mIndex.size();
+        openWriter();
+        return true;
+    }
+
+    private void replay(String line) {
+        String[] parts = line.split(" ");
+        try {
+            if (PUT.equals(parts[0]) && parts.length == 4) {
+                Entry old = mIndex.remove(parts[1]);
+                if (old != null) mSize -= old.size;
+                Entry entry = new Entry(parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3]));
+                mIndex.put(entry.key, entry);
+                mSize += entry.size;
+            } else if (READ.equals(parts[0]) && parts.length == 3) {
+                Entry entry = mIndex.get(parts[1]);
+                if (entry != null) entry.accessTime = Long.parseLong(parts[2]);
+            } else if (DEL.equals(parts[0]) && parts.length == 2) {
+                Entry old = mIndex.remove(parts[1]);
+                if (old != null) mSize -= old.size;
+            }
+        } catch (NumberFormatException ignore) {
+            // a torn last line, skip it
+        }
+    }
+
+    /**
+     * Rebuild from the existing files, such as the cache created before the journal,
+     * and write a new journal
+     * @param files cached files named by their keys plus suffix
+     * @param suffix file name suffix
+     */
+    synchronized void rebuild(List<File> files, String suffix) {
+        mIndex.clear();
+        mSize = 0;
+        File[] sorted = files.toArray(new File[files.size()]);
+        Arrays.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long diff = f1.lastModified() - f2.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (File f : sorted) {
+            String name = f.getName();
+            String key = name.substring(0, name.length() - suffix.length());
+            Entry entry = new Entry(key, f.length(), f.lastModified());
+            mIndex.put(key, entry);
+            mSize += entry.size;
+        }
+        compact();
+    }
+
+    synchronized void put(String key, long size) {
+        Entry old = mIndex.remove(key);
+        if (old != null) {
+            mSize -= old.size;
+            mRedundantCount++;
+        }
+        long now = System.currentTimeMillis();
+        mIndex.put(key, new Entry(key, size, now));
+        mSize += size;
+        append(PUT + ' ' + key + ' ' + size + ' ' + now, true);
+    }
+
+    /**
+     * @return whether the key is indexed, without recording an access
+     */
+    synchronized boolean contains(String key) {
+        return mIndex.containsKey(key);
+    }
+
+    /**
+     * Record an access of the key in memory, its line is written by sync()
+     * @return false if the key is not indexed
+     */
+    synchronized boolean read(String key) {
+        Entry entry = mIndex.get(key);
+        if (entry == null) return false;
+        entry.accessTime = System.currentTimeMillis();
+        mRedundantCount++;
+        mPendingReads.append(READ).append(' ').append(key).append(' ')
+                .append(entry.accessTime).append('\n');
+        return true;
+    }
+
+    /**
+     * Write the pending READ lines, and compact the journal if the redundant lines pile up
+     */
+    synchronized void sync() {
+        if (mRedundantCount >= COMPACT_THRESHOLD && mRedundantCount >= mIndex.size()) {
+            compact();
+            return;
+        }
+        if (mPendingReads.length() > 0) {
+            append(mPendingReads.substring(0, mPendingReads.length() - 1), true);
+            mPendingReads.setLength(0);
+        }
+    }
+
+    synchronized void remove(String key) {
+        Entry old = mIndex.remove(key);
+        if (old != null) {
+            mSize -= old.size;
+            mRedundantCount += 2;
+            append(DEL + ' ' + key, true);
+        }
+    }
+
+    /**
+     * Remove the least recently used entries until the total size is within maxSize
+     * @return removed keys, whose files should be deleted by the caller
+     */
+    synchronized List<String> trimToSize(long maxSize) {
+        ArrayList<String> evicted = new ArrayList<String>();
+        Iterator<Map.Entry<String, Entry>> iter = mIndex.entrySet().iterator();
+        while (mSize > maxSize && iter.hasNext()) {
+            Entry eldest = iter.next().getValue();
+            iter.remove();
+            mSize -= eldest.size;
+            mRedundantCount += 2;
+            evicted.add(eldest.key);
+            append(DEL + ' ' + eldest.key, false);
+        }
+        flush();
+        return evicted;
+    }
+
+    synchronized void clear() {
+        mIndex.clear();
+        mSize = 0;
+        compact();
+    }
+
+    /**
+     * @return total size in bytes of the indexed entries
+     */
+    synchronized long getSize() {
+        return mSize;
+    }
+
+    synchronized int getCount() {
+        return mIndex.size();
+    }
+
+    /**
+     * @return count of the keys starting with the prefix
+     */
+    synchronized int countPrefixed(String prefix) {
+        int count = 0;
+        for (String key : mIndex.keySet()) {
+            if (key.startsWith(prefix)) count++;
+        }
+        return count;
+    }
+
+    private void append(String line, boolean flush) {
+        if (mWriter == null) return;
+        try {
+            mWriter.write(line);
+            mWriter.write('\n');
+            if (flush) mWriter.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "failed to append journal", e);
+        }
+    }
+
+    private void flush() {
+        if (mWriter == null) return;
+        try {
+            mWriter.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "failed to flush journal", e);
+        }
+    }
+
+    /**
+     * Rewrite the journal with one PUT line per entry, in LRU order
+     */
+    private void compact() {
+        closeQuietly(mWriter);
+        mWriter = null;
+        mPendingReads.setLength(0); // the index has them
+        File tmp = new File(mJournalFile.getPath() + ".tmp");
+        Writer writer = null;
+        try {
+            mJournalFile.getParentFile().mkdirs();
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(tmp), "US-ASCII"), 8192);
+            writer.write(MAGIC + '\n' + VERSION + '\n');
+            for (Entry entry : mIndex.values()) {
+                writer.write(PUT + ' ' + entry.key + ' ' + entry.size + ' ' + entry.accessTime + '\n');
+            }
+            writer.close();
+            writer = null;
+            if (!tmp.renameTo(mJournalFile)) {
+                mJournalFile.delete();
+                tmp.renameTo(mJournalFile);
+            }
+            mRedundantCount = 0;
+        } catch (IOException e) {
+            Log.w(TAG, "failed to compact journal", e);
+            closeQuietly(writer);
+            tmp.delete();
+        }
+        openWriter();
+    }
+
+    private void openWriter() {
+        try {
+            mWriter = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(mJournalFile, true), "US-ASCII"), 8192);
+        } catch (IOException e) {
+            Log.w(TAG, "failed to open journal", e);
+            mWriter = null;
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException ignore) { }
+        }
+    }
+}
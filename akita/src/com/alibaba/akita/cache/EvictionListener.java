@@ -0,0 +1,24 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alibaba.akita.cache;
+
+/**
+ * Notified when a MemCache evicts an entry to stay in its max size,
+ * not when the entry is removed or replaced by the user.
+ * @author zhe.yangz
+ */
+public interface EvictionListener<K, V> {
+    public void onEvicted(K key, V value);
+}
@@ -18,11 +18,16 @@ public interface FilesCache<V> {
     public V get(String key);
 
     /**
+     * The value maybe written to disk asynchronously, get() sees it at once.
      * @param key
      * @param value if value is null, no effect and return null
-     * @return oldValue or null if has no oldValue
+     * @return oldValue still in memory, or null
      */
     public V put(String key, V value);
+    /**
+     * @param key
+     * @return oldValue not written yet, or null; the file is not read back
+     */
     public V remove(String key);
 
     /**
@@ -31,6 +36,11 @@ public interface FilesCache<V> {
      */
     public void evict();
 
+    /**
+     * Wait until the pending writes are on disk, such as before exit
+     */
+    public void flush();
+
     /**
      * Clear all this cache data
      * Note: this method maybe Time-consuming, you may run it async
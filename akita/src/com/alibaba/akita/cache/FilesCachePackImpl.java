@@ -0,0 +1,610 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alibaba.akita.cache;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Environment;
+import com.alibaba.akita.io.BodySink;
+import com.alibaba.akita.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * FilesCache for many small entries, such as thumbnails.
+ * The entries are appended into 4MB segment files instead of one file each,
+ * read through the segments' MappedByteBuffers and located by an in-memory index,
+ * so a hit is a buffer slice without any file system call.
+ * Record in a segment: keyLength, valueLength (-1 if deleted), crc of the lengths, key and value,
+ * key, value. The mapped pages are written back in any order, so after a crash a record
+ * may be partly written; replaying a segment stops at the first record failing its crc.
+ * Replaying the segments at startup rebuilds the index, in the order of writing.
+ * Segments mostly of deleted and replaced entries are compacted in background.
+ * Entries larger than 512KB are not cached.
+ *
+ * @author zhe.yangz
+ */
+public abstract class FilesCachePackImpl<V> implements FilesCache<V> {
+    protected static final String TAG = "FilesCachePackImpl";
+
+    private static final String CACHE_SIZE_KEY = "cacheSizeInMB";
+    private static final String PREF_PREFIX = "filescachepack_";
+    private static final int DEFAULT_CACHE_SIZE_MB = 32;
+    private static final String SEGMENT_SUFFIX = ".pack";
+    private static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_ENTRY_SIZE = SEGMENT_SIZE / 8;
+    private static final int MAX_KEY_SIZE = 4096;
+    private static final int HEADER_SIZE = 12;
+
+    /** compacts the segments of all the pack caches one by one */
+    private static final ThreadPoolExecutor sCompactor = new ThreadPoolExecutor(
+            1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "AkPackCompactor");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private static class Segment {
+        final int id;
+        final File file;
+        final MappedByteBuffer buffer;
+        int writeOffset = 0;
+        /** size of the deleted or replaced records */
+        int deadBytes = 0;
+
+        Segment(int id, File file, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private static class Entry {
+        Segment segment;
+        /** offset of the record */
+        int offset;
+        /** replaced or deleted, under lock */
+        boolean killed = false;
+        final int keyLength;
+        final int valueLength;
+
+        Entry(Segment segment, int offset, int keyLength, int valueLength) {
+            this.segment = segment;
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.valueLength = valueLength;
+        }
+
+        int recordSize() {
+            return HEADER_SIZE + keyLength + valueLength;
+        }
+    }
+
+    protected String mCacheTag;
+    protected Context mContext;
+    protected int mCacheSizeInMB;
+    private MemCache<String, V> mSoftCache;
+
+    /** key -> entry, in LRU order */
+    private final LinkedHashMap<String, Entry> mIndex = new LinkedHashMap<String, Entry>(256, 0.75f, true);
+    /** id -> segment, the last one is being appended to */
+    private final TreeMap<Integer, Segment> mSegments = new TreeMap<Integer, Segment>();
+    private long mLiveBytes = 0;
+    private boolean mOpened = false;
+    private boolean mCompactScheduled = false;
+
+    protected FilesCachePackImpl(Context context, String cacheTag) {
+        mContext = context;
+        mCacheTag = cacheTag;
+        mSoftCache = new MemCacheSoftRefImpl<String, V>();
+
+        SharedPreferences sp = context.getSharedPreferences(PREF_PREFIX + cacheTag, 0);
+        mCacheSizeInMB = sp.getInt(CACHE_SIZE_KEY, DEFAULT_CACHE_SIZE_MB);
+    }
+
+    /**
+     * @param data value bytes, valid until the cache is cleared
+     */
+    protected abstract V xform(ByteBuffer data);
+
+    /**
+     * @return bytes to save, null if the value can not be saved
+     */
+    protected abstract byte[] output(V v);
+
+    private String getSpecifiedCacheDir() {
+        return Environment.getExternalStorageDirectory().getAbsolutePath()
+                + "/Android/data/" + mContext.getPackageName() + "/cache/" + mCacheTag + "/";
+    }
+
+    @Override
+    public V get(String key) {
+        V v = mSoftCache.get(key);
+        if (v != null) return v;
+
+        ByteBuffer data = slice(key);
+        if (data == null) return null;
+        try {
+            v = xform(data);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "drop broken cache of " + key, e);
+        }
+        if (v == null) {
+            delete(key);
+        } else {
+            mSoftCache.put(key, v);
+        }
+        return v;
+    }
+
+    private synchronized ByteBuffer slice(String key) {
+        if (!open()) return null;
+        Entry entry = mIndex.get(key);
+        if (entry == null) return null;
+        // the mapping stays valid even if the segment is compacted later
+        ByteBuffer data = entry.segment.buffer.duplicate();
+        int start = entry.offset + HEADER_SIZE + entry.keyLength;
+        data.limit(start + entry.valueLength);
+        data.position(start);
+        return data.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Encode and append the value, the old record becomes garbage to compact.
+     * @return old value still in memory, or null
+     */
+    @Override
+    public V put(String key, V value) {
+        if (value == null) return null;
+        V oldV = mSoftCache.put(key, value);
+        putBytes(key, output(value));
+        return oldV;
+    }
+
+    private void putBytes(String key, byte[] data) {
+        if (data == null || data.length > MAX_ENTRY_SIZE) {
+            delete(key);
+            return;
+        }
+        synchronized (this) {
+            if (open()) {
+                append(key, data);
+                trimToSize();
+                scheduleCompactIfNeeded();
+            }
+        }
+    }
+
+    /**
+     * Keep the value in the memory tier only, such as its bytes are saved by a raw sink
+     */
+    public void putInMemory(String key, V value) {
+        mSoftCache.put(key, value);
+    }
+
+    /**
+     * Sink saving the downloaded bytes of the key as they are,
+     * instead of encoding the decoded value again by output().
+     * The bytes replace the key's old value when committed.
+     * @param key
+     * @return sink for HttpInvoker
+     */
+    public BodySink newRawSink(final String key) {
+        return new BodySink() {
+            @Override
+            public OutputStream begin() {
+                return new RawOutputStream();
+            }
+
+            @Override
+            public void commit(OutputStream out) {
+                RawOutputStream raw = (RawOutputStream) out;
+                mSoftCache.remove(key);
+                putBytes(key, raw.mTooLarge ? null : raw.toByteArray());
+            }
+
+            @Override
+            public void abort(OutputStream out) {
+                /* no op */
+            }
+        };
+    }
+
+    /**
+     * Buffers the body in memory, stops buffering once it is too large to cache
+     */
+    private static class RawOutputStream extends ByteArrayOutputStream {
+        boolean mTooLarge = false;
+
+        RawOutputStream() {
+            super(16 * 1024);
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            if (mTooLarge) return;
+            if (size() + len > MAX_ENTRY_SIZE) {
+                mTooLarge = true;
+                reset();
+                return;
+            }
+            super.write(b, off, len);
+        }
+    }
+
+    /**
+     * @return oldValue still in memory, or null; the record is not read back
+     */
+    @Override
+    public V remove(String key) {
+        V oldV = mSoftCache.remove(key);
+        delete(key);
+        return oldV;
+    }
+
+    private synchronized void delete(String key) {
+        if (open() && mIndex.containsKey(key)) {
+            append(key, null);
+            scheduleCompactIfNeeded();
+        }
+    }
+
+    @Override
+    public synchronized void evict() {
+        if (open()) {
+            trimToSize();
+            scheduleCompactIfNeeded();
+        }
+    }
+
+    @Override
+    public synchronized void flush() {
+        for (Segment segment : mSegments.values()) {
+            segment.buffer.force();
+        }
+    }
+
+    @Override
+    public void clearCache() {
+        mSoftCache.clear();
+        synchronized (this) {
+            mIndex.clear();
+            mSegments.clear();
+            mLiveBytes = 0;
+            File[] files = new File(getSpecifiedCacheDir()).listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    if (f.getName().endsWith(SEGMENT_SUFFIX)) f.delete();
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized double getCacheCurrentSizeMB() {
+        open();
+        return mLiveBytes / 1024.0 / 1024.0;
+    }
+
+    @Override
+    public void setCacheSize(int cacheSizeInMB) {
+        mCacheSizeInMB = cacheSizeInMB;
+        SharedPreferences sp = mContext.getSharedPreferences(PREF_PREFIX + mCacheTag, 0);
+        if (mCacheSizeInMB != sp.getInt(CACHE_SIZE_KEY, DEFAULT_CACHE_SIZE_MB)) {
+            sp.edit().putInt(CACHE_SIZE_KEY, mCacheSizeInMB).apply();
+        }
+    }
+
+    /**
+     * Map and replay the segments at the first call
+     * @return false if the sd card is not writable
+     */
+    private boolean open() {
+        if (mOpened) return true;
+        if (!Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) return false;
+
+        File dir = new File(getSpecifiedCacheDir());
+        dir.mkdirs();
+        File[] files = dir.listFiles();
+        TreeMap<Integer, File> segmentFiles = new TreeMap<Integer, File>();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (!name.endsWith(SEGMENT_SUFFIX)) continue;
+                try {
+                    segmentFiles.put(Integer.valueOf(
+                            name.substring(0, name.length() - SEGMENT_SUFFIX.length())), f);
+                } catch (NumberFormatException e) {
+                    f.delete();
+                }
+            }
+        }
+        for (Map.Entry<Integer, File> sf : segmentFiles.entrySet()) {
+            Segment segment = mapSegment(sf.getKey(), sf.getValue());
+            if (segment == null) {
+                sf.getValue().delete();
+                continue;
+            }
+            mSegments.put(segment.id, segment);
+            replay(segment);
+        }
+        mOpened = true;
+        return true;
+    }
+
+    private Segment mapSegment(int id, File file) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            if (raf.length() != SEGMENT_SIZE) raf.setLength(SEGMENT_SIZE);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+            return new Segment(id, file, buffer);
+        } catch (IOException e) {
+            Log.w(TAG, "failed to map " + file, e);
+            return null;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close(); // the mapping stays valid
+                } catch (IOException ignore) { }
+            }
+        }
+    }
+
+    private void replay(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        int pos = 0;
+        while (pos + HEADER_SIZE <= SEGMENT_SIZE) {
+            int keyLength = buffer.getInt(pos);
+            int valueLength = buffer.getInt(pos + 4);
+            if (keyLength <= 0 || keyLength > MAX_KEY_SIZE
+                    || valueLength < -1 || valueLength > MAX_ENTRY_SIZE
+                    || pos + HEADER_SIZE + keyLength + Math.max(valueLength, 0) > SEGMENT_SIZE) {
+                break; // end of the records, or torn
+            }
+            byte[] keyBytes = new byte[keyLength];
+            byte[] value = (valueLength >= 0) ? new byte[valueLength] : null;
+            ByteBuffer b = buffer.duplicate();
+            b.position(pos + HEADER_SIZE);
+            b.get(keyBytes);
+            if (value != null) b.get(value);
+            if (buffer.getInt(pos + 8) != crc(keyBytes, valueLength, value)) break;
+
+            String key = decodeKey(keyBytes);
+            Entry old = mIndex.remove(key);
+            if (old != null) kill(old);
+            if (valueLength >= 0) {
+                mIndex.put(key, new Entry(segment, pos, keyLength, valueLength));
+                mLiveBytes += valueLength;
+                pos += HEADER_SIZE + keyLength + valueLength;
+            } else {
+                segment.deadBytes += HEADER_SIZE + keyLength;
+                pos += HEADER_SIZE + keyLength;
+            }
+        }
+        segment.writeOffset = pos;
+    }
+
+    /**
+     * Append a record and update the index
+     * @param value null to record the deletion
+     */
+    private void append(String key, byte[] value) {
+        byte[] keyBytes = encodeKey(key);
+        Entry old = mIndex.remove(key);
+        if (old != null) kill(old);
+        if (keyBytes.length > MAX_KEY_SIZE) return;
+
+        Entry written = write(keyBytes, value);
+        if (written == null) return;
+        if (value != null) {
+            mIndex.put(key, written);
+            mLiveBytes += value.length;
+        } else {
+            written.segment.deadBytes += HEADER_SIZE + keyBytes.length;
+        }
+    }
+
+    /**
+     * Write a record to the last segment, or a new one if it is full
+     * @return the written record, null if failed
+     */
+    private Entry write(byte[] keyBytes, byte[] value) {
+        int valueLength = (value == null) ? -1 : value.length;
+        int size = HEADER_SIZE + keyBytes.length + Math.max(valueLength, 0);
+
+        Segment segment = mSegments.isEmpty() ? null : mSegments.get(mSegments.lastKey());
+        if (segment == null || segment.writeOffset + size > SEGMENT_SIZE) {
+            int id = (segment == null) ? 0 : segment.id + 1;
+            segment = mapSegment(id, new File(getSpecifiedCacheDir(), id + SEGMENT_SUFFIX));
+            if (segment == null) return null;
+            mSegments.put(id, segment);
+        }
+
+        int offset = segment.writeOffset;
+        ByteBuffer b = segment.buffer.duplicate();
+        b.position(offset);
+        b.putInt(keyBytes.length).putInt(valueLength).putInt(crc(keyBytes, valueLength, value)).put(keyBytes);
+        if (value != null) b.put(value);
+        if (b.remaining() >= 4) b.putInt(0); // end mark, over the possibly torn record
+        segment.writeOffset = offset + size;
+        return new Entry(segment, offset, keyBytes.length, valueLength);
+    }
+
+    private void kill(Entry entry) {
+        entry.killed = true;
+        entry.segment.deadBytes += entry.recordSize();
+        mLiveBytes -= entry.valueLength;
+    }
+
+    private void trimToSize() {
+        long maxSize = mCacheSizeInMB * 1024L * 1024L;
+        while (mLiveBytes > maxSize && !mIndex.isEmpty()) {
+            String eldest = mIndex.keySet().iterator().next();
+            mSoftCache.remove(eldest);
+            append(eldest, null);
+        }
+    }
+
+    /**
+     * @return a full segment mostly of garbage, or null
+     */
+    private Segment findCompactable() {
+        if (mSegments.size() < 2) return null;
+        Integer last = mSegments.lastKey();
+        for (Segment segment : mSegments.values()) {
+            if (segment.id != last && segment.deadBytes * 2 >= segment.writeOffset) return segment;
+        }
+        return null;
+    }
+
+    private void scheduleCompactIfNeeded() {
+        if (mCompactScheduled || findCompactable() == null) return;
+        mCompactScheduled = true;
+        sCompactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                compact();
+            }
+        });
+    }
+
+    /**
+     * Move the live records of the compactable segments to the last one, and delete them.
+     * The moved entries keep their places in the LRU order.
+     * The lock is held for a record at a time, so get() and put() go on meanwhile.
+     */
+    private void compact() {
+        while (true) {
+            Segment victim;
+            boolean oldest;
+            int end;
+            // record offset -> live entry in the victim, found without touching the LRU order
+            HashMap<Integer, Entry> live = new HashMap<Integer, Entry>();
+            synchronized (this) {
+                mCompactScheduled = false;
+                victim = findCompactable();
+                if (victim == null) return;
+                oldest = (victim.id == mSegments.firstKey());
+                // no more writes into it, the entries still there are read as before
+                mSegments.remove(victim.id);
+                end = victim.writeOffset;
+                for (Entry entry : mIndex.values()) {
+                    if (entry.segment == victim) live.put(entry.offset, entry);
+                }
+            }
+
+            ByteBuffer buffer = victim.buffer;
+            int pos = 0;
+            while (pos < end) {
+                synchronized (this) {
+                    pos = moveRecord(buffer, pos, live.get(pos), oldest);
+                }
+            }
+            victim.file.delete();
+        }
+    }
+
+    /**
+     * Copy the record at pos to the last segment if it is still live, under lock
+     * @param entry the entry of the record when the compaction began, or null
+     * @return offset of the next record
+     */
+    private int moveRecord(ByteBuffer buffer, int pos, Entry entry, boolean oldest) {
+        int keyLength = buffer.getInt(pos);
+        int valueLength = buffer.getInt(pos + 4);
+        byte[] keyBytes = new byte[keyLength];
+        ByteBuffer b = buffer.duplicate();
+        b.position(pos + HEADER_SIZE);
+        b.get(keyBytes);
+        if (entry != null && !entry.killed) {
+            byte[] value = new byte[valueLength];
+            b.get(value);
+            Entry written = write(keyBytes, value);
+            if (written != null) {
+                entry.segment = written.segment;
+                entry.offset = written.offset;
+            } else {
+                mIndex.remove(decodeKey(keyBytes));
+                kill(entry);
+            }
+        } else if (valueLength < 0 && !oldest && !mIndex.containsKey(decodeKey(keyBytes))) {
+            // still hides a record of the key in an older segment
+            Entry written = write(keyBytes, null);
+            if (written != null) written.segment.deadBytes += HEADER_SIZE + keyLength;
+        }
+        return pos + HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+    }
+
+    /**
+     * @param value null if deleted
+     */
+    private static int crc(byte[] keyBytes, int valueLength, byte[] value) {
+        CRC32 crc = new CRC32();
+        crc.update(keyBytes.length >>> 24);
+        crc.update(keyBytes.length >>> 16);
+        crc.update(keyBytes.length >>> 8);
+        crc.update(keyBytes.length);
+        crc.update(valueLength >>> 24);
+        crc.update(valueLength >>> 16);
+        crc.update(valueLength >>> 8);
+        crc.update(valueLength);
+        crc.update(keyBytes);
+        if (value != null) crc.update(value);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] encodeKey(String key) {
+        try {
+            return key.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String decodeKey(byte[] keyBytes) {
+        try {
+            return new String(keyBytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -12,13 +12,28 @@ import android.content.SharedPreferences;
 import android.graphics.Bitmap;
 import android.os.Build;
 import android.os.Environment;
+import com.alibaba.akita.io.BodySink;
 import com.alibaba.akita.util.FileUtil;
 import com.alibaba.akita.util.HashUtil;
 import com.alibaba.akita.util.Log;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URLEncoder;
 import java.security.spec.EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 在SD卡中存储文件夹的实现 
@@ -30,10 +45,17 @@ public abstract class FilesCacheSDFoldersImpl<V> implements FilesCache<V> {
 
     private static final String CACHE_SIZE_KEY = "cacheSizeInMB";
     private static final String PREF_PREFIX = "filescachesd_";
+    private static final String JOURNAL_FILE_NAME = "journal";
+    private static final String CACHE_FILE_SUFFIX = ".cache";
+    private static final String TMP_FILE_SUFFIX = ".tmp";
     /**
-     * 当evict时，判断多少小时前的文件夹会被删除
+     * hashed key的前缀, 以区分之前以md5命名的文件
      */
-    private static final int CACHE_EVICT_HOURS = 48;
+    private static final String KEY_PREFIX = "m";
+    /**
+     * key到hashed key的缓存槽数, 2的幂
+     */
+    private static final int KEY_MEMO_SIZE = 256;
     /**
      * 默认Cache Size MB
      */
@@ -42,11 +64,57 @@ public abstract class FilesCacheSDFoldersImpl<V> implements FilesCache<V> {
      * 小于该值的图片会缓存在软引用Mem中
      */
     private static final int MEM_BITMAP_BYTE = 8000000;
+    /**
+     * 超过该数量的待写入值由调用线程同步写入
+     */
+    private static final int MAX_PENDING_WRITES = 16;
+
+    /** writes the pending values of all the FilesCaches one by one */
+    private static final ThreadPoolExecutor sWriter = new ThreadPoolExecutor(
+            1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "AkFilesCacheWriter");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
 
     protected String mCacheTag;
     private MemCache<String, V> mSoftBitmapCache;
     protected Context mContext;
     protected int mCacheSizeInMB;
+    /**
+     * LRU index of the cached files, loaded by the writer thread after construction,
+     * or later if the sd card was not mounted then; null until loaded
+     */
+    private volatile DiskLruJournal mJournal;
+    private final AtomicBoolean mJournalLoadQueued = new AtomicBoolean();
+    private final AtomicBoolean mJournalSyncQueued = new AtomicBoolean();
+    /** hashed key -> value not written yet, repeated puts of a key are coalesced */
+    private final ConcurrentHashMap<String, V> mPendingWrites = new ConcurrentHashMap<String, V>();
+    /** held while writing or deleting a file, so a removed value is not written back */
+    private final Object mWriteLock = new Object();
+
+    private static class HashedKey {
+        final String key;
+        final String hashedKey;
+
+        HashedKey(String key, String hashedKey) {
+            this.key = key;
+            this.hashedKey = hashedKey;
+        }
+    }
+
+    /** recently mapped keys, a slot maybe overwritten by other threads at any time */
+    private final HashedKey[] mKeyMemo = new HashedKey[KEY_MEMO_SIZE];
+    /** count of the files named by md5 left, -1 before the journal is loaded */
+    private final AtomicInteger mLegacyCount = new AtomicInteger(-1);
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mFilteredMissCount = new AtomicLong();
+    private final AtomicLong mFalsePositiveCount = new AtomicLong();
 
     /**
      * 
@@ -73,18 +141,27 @@ public abstract class FilesCacheSDFoldersImpl<V> implements FilesCache<V> {
             /* no op */
         }
 
+        // load or rebuild the journal on the writer thread, not on the first caller's
+        queueJournalLoad();
     }
 
     protected abstract V xform(String fileAbsoPathAndName);
     protected abstract void output(String fileAbsoPath, String fileName, V v);
     
     private String mapRule(String key) {
-        // because the chinese char in url will break the md5.
-        return HashUtil.md5(URLEncoder.encode(key));
+        int slot = key.hashCode() & (KEY_MEMO_SIZE - 1);
+        HashedKey memo = mKeyMemo[slot];
+        if (memo != null && memo.key.equals(key)) {
+            return memo.hashedKey;
+        }
+
+        String hashedKey = KEY_PREFIX + HashUtil.murmur3(key);
+        mKeyMemo[slot] = new HashedKey(key, hashedKey);
+        return hashedKey;
     }
 
     private String getSpecifiedCacheFileName(String hashedKey) {
-        return hashedKey + ".cache";
+        return hashedKey + CACHE_FILE_SUFFIX;
     }
 
     private String getSepcifiedCacheDir() {
@@ -104,22 +181,37 @@ public abstract class FilesCacheSDFoldersImpl<V> implements FilesCache<V> {
         if (bm != null) {
             return bm;
         } else {
-            bm = doLoad(mapRule(key));
+            String hashedKey = mapRule(key);
+            bm = mPendingWrites.get(hashedKey);
+            if (bm == null) bm = doLoad(key, hashedKey);
             if (bm != null) {
-                if (bm instanceof Bitmap && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
-                    Bitmap bitmap = (Bitmap) bm;
-                    if (bitmap.getByteCount() < MEM_BITMAP_BYTE) {
-                        mSoftBitmapCache.put(key, bm);
-                    }
-                } else {
-                    mSoftBitmapCache.put(key, bm);
-                }
+                putInMemory(key, bm);
             }
             return bm;
         }
     }
 
-    private V doLoad(String hashedKey) {
+    /**
+     * get() past the memory tier, such as below the memory tiers of a TieredCache
+     * @param key
+     * @return
+     */
+    public V getFromDisk(String key) {
+        String hashedKey = mapRule(key);
+        V v = mPendingWrites.get(hashedKey);
+        return (v != null) ? v : doLoad(key, hashedKey);
+    }
+
+    private V doLoad(String key, String hashedKey) {
+        DiskLruJournal journal = getJournal();
+        if (journal == null) return null;
+        if (!journal.contains(hashedKey)
+                && (mLegacyCount.get() <= 0 || !migrateLegacy(journal, key, hashedKey))) {
+            // definite miss, no file system call
+            mFilteredMissCount.incrementAndGet();
+            return null;
+        }
+
         String state = Environment.getExternalStorageState();
         if (Environment.MEDIA_MOUNTED.equals(state)) {    // We can read and write the media
 
@@ -134,30 +226,290 @@ public abstract class FilesCacheSDFoldersImpl<V> implements FilesCache<V> {
                 + getSpecifiedCacheFileName(hashedKey);
         File f = new File(pathAndName);
         if (f.exists()) {
+            mHitCount.incrementAndGet();
+            journal.read(hashedKey);
+            queueJournalSync();
             return xform(pathAndName);
         } else {
+            // deleted by others, such as the user cleared the sd card
+            mFalsePositiveCount.incrementAndGet();
+            journal.remove(hashedKey);
             return null;
         }
     }
 
+    /**
+     * @return count of loads from the files
+     */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * @return count of misses answered by the index without any file system call
+     */
+    public long getFilteredMissCount() {
+        return mFilteredMissCount.get();
+    }
+
+    /**
+     * @return rate of the indexed keys whose files were gone, as the index is exact it is
+     * only above 0 if the files were deleted by others
+     */
+    public double getFalsePositiveRate() {
+        long falsePositives = mFalsePositiveCount.get();
+        long positives = mHitCount.get() + falsePositives;
+        return positives == 0 ? 0 : (double) falsePositives / positives;
+    }
+
+    /**
+     * @return the journal, null if not loaded yet, then its load is queued on the writer thread
+     */
+    private DiskLruJournal getJournal() {
+        DiskLruJournal journal = mJournal;
+        if (journal == null) queueJournalLoad();
+        return journal;
+    }
+
+    private void queueJournalLoad() {
+        if (!mJournalLoadQueued.compareAndSet(false, true)) return;
+        sWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                mJournalLoadQueued.set(false);
+                loadJournal();
+            }
+        });
+    }
+
+    /**
+     * Write the journal's pending lines and compact it, on the writer thread
+     */
+    private void queueJournalSync() {
+        if (!mJournalSyncQueued.compareAndSet(false, true)) return;
+        sWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                mJournalSyncQueued.set(false);
+                DiskLruJournal journal = mJournal;
+                if (journal != null) journal.sync();
+            }
+        });
+    }
+
+    /**
+     * Blocks until the journal is replayed, or rebuilt from the cached files at the first time.
+     * Called on the writer thread, or by the writes which do file I/O anyway.
+     * @return the journal, null if the sd card is not mounted yet
+     */
+    private synchronized DiskLruJournal loadJournal() {
+        if (mJournal == null) {
+            String state = Environment.getExternalStorageState();
+            if (!Environment.MEDIA_MOUNTED.equals(state)
+                    && !Environment.MEDIA_MOUNTED_READ_ONLY.equals(state)) {
+                return null;
+            }
+            DiskLruJournal journal = new DiskLruJournal(new File(getSepcifiedCacheDir(), JOURNAL_FILE_NAME));
+            if (!journal.load()) {
+                // no journal yet, walk the folders only this once
+                ArrayList<File> files = new ArrayList<File>();
+                File[] dirs = new File(getSepcifiedCacheDir()).listFiles();
+                if (dirs != null) {
+                    for (File dir : dirs) {
+                        File[] dirFiles = dir.isDirectory() ? dir.listFiles() : null;
+                        if (dirFiles == null) continue;
+                        for (File f : dirFiles) {
+                            if (f.getName().endsWith(CACHE_FILE_SUFFIX)) {
+                                files.add(f);
+                            } else if (f.getName().endsWith(TMP_FILE_SUFFIX)) {
+                                f.delete(); // left by an unfinished raw write
+                            }
+                        }
+                    }
+                }
+                journal.rebuild(files, CACHE_FILE_SUFFIX);
+            }
+            mLegacyCount.set(journal.getCount() - journal.countPrefixed(KEY_PREFIX));
+            mJournal = journal;
+        }
+        return mJournal;
+    }
+
     @Override
     public V put(String key, V value) {
         if (value != null) {
-            V oldV = remove(key);
-            doSave(mapRule(key), value);
-            if (value instanceof Bitmap && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
-                Bitmap bitmap = (Bitmap) value;
-                if (bitmap.getByteCount() < MEM_BITMAP_BYTE) {
-                    mSoftBitmapCache.put(key, value);
-                }
+            final String hashedKey = mapRule(key);
+            V oldV = mSoftBitmapCache.remove(key);
+            V pendingV = mPendingWrites.put(hashedKey, value);
+            if (pendingV != null) {
+                oldV = pendingV; // coalesced, the write in queue will write the new value
+            } else if (mPendingWrites.size() > MAX_PENDING_WRITES) {
+                writeBehind(hashedKey); // backlog is full, write it on this thread
             } else {
-                mSoftBitmapCache.put(key, value);
+                sWriter.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        writeBehind(hashedKey);
+                    }
+                });
             }
+            putInMemory(key, value);
             return oldV;
         }
         return null;
     }
 
+    /**
+     * Keep the value in the memory tier only, such as its file is saved by a raw sink
+     */
+    public void putInMemory(String key, V value) {
+        if (value instanceof Bitmap && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
+            Bitmap bitmap = (Bitmap) value;
+            if (bitmap.getByteCount() < MEM_BITMAP_BYTE) {
+                mSoftBitmapCache.put(key, value);
+            }
+        } else {
+            mSoftBitmapCache.put(key, value);
+        }
+    }
+
+    /**
+     * Sink saving the downloaded bytes of the key as its file as they are,
+     * instead of encoding the decoded value again by output().
+     * The file replaces the key's old value when committed.
+     * @param key
+     * @return sink for HttpInvoker
+     */
+    public BodySink newRawSink(final String key) {
+        final String hashedKey = mapRule(key);
+        return new BodySink() {
+            @Override
+            public OutputStream begin() {
+                if (!Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+                    return null;
+                }
+                try {
+                    File dir = new File(getSpecifiedCacheFilePath(hashedKey));
+                    dir.mkdirs();
+                    return new RawOutputStream(File.createTempFile(hashedKey, TMP_FILE_SUFFIX, dir));
+                } catch (IOException e) {
+                    Log.w(TAG, "failed to create the raw file of " + key, e);
+                    return null;
+                }
+            }
+
+            @Override
+            public void commit(OutputStream out) {
+                RawOutputStream raw = (RawOutputStream) out;
+                raw.close();
+                if (raw.mFailed) {
+                    raw.mFile.delete();
+                    return;
+                }
+                mPendingWrites.remove(hashedKey);
+                mSoftBitmapCache.remove(key);
+                File f = new File(getSpecifiedCacheFilePath(hashedKey)
+                        + getSpecifiedCacheFileName(hashedKey));
+                DiskLruJournal journal = loadJournal(); // on the download thread
+                if (journal == null) {
+                    raw.mFile.delete();
+                    return;
+                }
+                synchronized (mWriteLock) {
+                    f.delete();
+                    if (!raw.mFile.renameTo(f)) {
+                        raw.mFile.delete();
+                        journal.remove(hashedKey);
+                        return;
+                    }
+                    journal.put(hashedKey, f.length());
+                }
+                trimToSize();
+                queueJournalSync();
+            }
+
+            @Override
+            public void abort(OutputStream out) {
+                RawOutputStream raw = (RawOutputStream) out;
+                raw.close();
+                raw.mFile.delete();
+            }
+        };
+    }
+
+    /**
+     * Writes a temp file, remembers the failure instead of throwing it to the download
+     */
+    private static class RawOutputStream extends OutputStream {
+        final File mFile;
+        private final OutputStream mOut;
+        boolean mFailed = false;
+
+        RawOutputStream(File file) throws IOException {
+            mFile = file;
+            mOut = new BufferedOutputStream(new FileOutputStream(file), 8192);
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (mFailed) return;
+            try {
+                mOut.write(b, off, len);
+            } catch (IOException e) {
+                Log.w(TAG, "failed to write " + mFile, e);
+                mFailed = true;
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                mFailed = true;
+            }
+        }
+    }
+
+    /**
+     * Write the pending value of the key until it is not replaced during the write.
+     * Only one thread writes a key at a time, the one put it into the empty pending map.
+     */
+    private void writeBehind(String hashedKey) {
+        while (true) {
+            V value;
+            synchronized (mWriteLock) {
+                value = mPendingWrites.get(hashedKey);
+                if (value == null) return; // removed
+                try {
+                    doSave(hashedKey, value);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "failed to write " + hashedKey, e);
+                }
+            }
+            if (mPendingWrites.remove(hashedKey, value)) return;
+        }
+    }
+
+    @Override
+    public void flush() {
+        try {
+            sWriter.submit(new Runnable() {
+                @Override
+                public void run() { }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            /* no op */
+        }
+    }
+
     /**
      * @param hashedKey
      * @param value
@@ -177,56 +529,138 @@ public abstract class FilesCacheSDFoldersImpl<V> implements FilesCache<V> {
         // doSave V to the sd cache filesystem
         String path = getSpecifiedCacheFilePath(hashedKey);
         output(path, getSpecifiedCacheFileName(hashedKey), value);
+        File f = new File(path, getSpecifiedCacheFileName(hashedKey));
+        DiskLruJournal journal = loadJournal();
+        if (f.exists() && journal != null) {
+            journal.put(hashedKey, f.length());
+            trimToSize();
+            queueJournalSync();
+        }
+    }
+
+    /**
+     * Rename the key's file named by the md5 rule before, on a miss while such files are left;
+     * the others are dropped when evicted
+     * @return whether the file of hashedKey is there now
+     */
+    private boolean migrateLegacy(DiskLruJournal journal, String key, String hashedKey) {
+        // because the chinese char in url will break the md5.
+        String legacyKey = HashUtil.md5(URLEncoder.encode(key));
+        if (!journal.contains(legacyKey)) return false;
+
+        synchronized (mWriteLock) {
+            if (!journal.contains(legacyKey)) return journal.contains(hashedKey);
+            File legacy = new File(getSpecifiedCacheFilePath(legacyKey)
+                    + getSpecifiedCacheFileName(legacyKey));
+            File f = new File(getSpecifiedCacheFilePath(hashedKey)
+                    + getSpecifiedCacheFileName(hashedKey));
+            journal.remove(legacyKey);
+            mLegacyCount.decrementAndGet();
+            if (journal.contains(hashedKey)) {
+                legacy.delete(); // put meanwhile
+                return true;
+            }
+            if (legacy.renameTo(f)) {
+                journal.put(hashedKey, f.length());
+                return true;
+            }
+            legacy.delete();
+            return false;
+        }
     }
 
     @Override
-    public V remove(String key) {
-        return doDelete(mapRule(key));
+    public V remove(final String key) {
+        final String hashedKey = mapRule(key);
+        V oldV = doDelete(hashedKey);
+        DiskLruJournal journal = getJournal();
+        if (journal != null) {
+            removeLegacy(journal, key);
+        } else {
+            // update the journal once loaded
+            sWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    DiskLruJournal journal = loadJournal();
+                    if (journal == null) return;
+                    synchronized (mWriteLock) {
+                        if (!new File(getSpecifiedCacheFilePath(hashedKey)
+                                + getSpecifiedCacheFileName(hashedKey)).exists()) {
+                            journal.remove(hashedKey); // unless put again meanwhile
+                        }
+                    }
+                    removeLegacy(journal, key);
+                }
+            });
+        }
+        return oldV;
+    }
+
+    /**
+     * Delete the key's file named by the md5 rule, or it would be migrated on the next get
+     */
+    private void removeLegacy(DiskLruJournal journal, String key) {
+        if (mLegacyCount.get() <= 0) return;
+        String legacyKey = HashUtil.md5(URLEncoder.encode(key));
+        synchronized (mWriteLock) {
+            if (journal.contains(legacyKey)) {
+                doDelete(legacyKey);
+                mLegacyCount.decrementAndGet();
+            }
+        }
     }
 
     private V doDelete(String hashedKey) {
-        V oldV = null;
+        V oldV = mPendingWrites.remove(hashedKey);
         String pathAndName = getSpecifiedCacheFilePath(hashedKey)
                 + getSpecifiedCacheFileName(hashedKey);
         File f = new File(pathAndName);
-        if (f.exists()) {
-            oldV = doLoad(hashedKey);
+        synchronized (mWriteLock) {
             f.delete();
+            DiskLruJournal journal = mJournal;
+            if (journal != null) journal.remove(hashedKey);
         }
         return oldV;
     }
 
     /**
-     * When current size > mCacheSizeInMB, then remove some data.
-     * note: maybe time-consuming
+     * When current size > mCacheSizeInMB, remove the least recently used files.
+     * Files are also evicted on put, so this is only needed after shrinking the cache size.
      */
     @Override
     public void evict() {
-        double size = FileUtil.getFileSizeMB(new File(getSepcifiedCacheDir()));
-        if (size > mCacheSizeInMB) {
-            // junk it
-            File cacheDir = new File(getSepcifiedCacheDir());
-            File[] dirs = cacheDir.listFiles();
-            for (File dir : dirs) {
-                if (dir.isDirectory()) {
-                    long diff = System.currentTimeMillis() - dir.lastModified();
-                    if (diff > CACHE_EVICT_HOURS * 60 * 60 * 1000) {
-                        FileUtil.deleteFileOrDir(dir);
-                    }
-                }
-            }
+        trimToSize();
+    }
+
+    private void trimToSize() {
+        DiskLruJournal journal = getJournal();
+        if (journal == null) return;
+        for (String hashedKey : journal.trimToSize(mCacheSizeInMB * 1024L * 1024L)) {
+            if (!hashedKey.startsWith(KEY_PREFIX)) mLegacyCount.decrementAndGet();
+            new File(getSpecifiedCacheFilePath(hashedKey)
+                    + getSpecifiedCacheFileName(hashedKey)).delete();
         }
     }
 
+    /**
+     * @return 0 until the journal is loaded
+     */
     public double getCacheCurrentSizeMB() {
-        return FileUtil.getFileSizeMB(new File(getSepcifiedCacheDir()));
+        DiskLruJournal journal = getJournal();
+        return (journal == null) ? 0 : journal.getSize() / 1024.0 / 1024.0;
     }
 
     @Override
     public void clearCache() {
         try{
-            File cacheDir = new File(getSepcifiedCacheDir());
-            FileUtil.deleteFileOrDir(cacheDir);
+            mPendingWrites.clear();
+            synchronized (mWriteLock) {
+                File cacheDir = new File(getSepcifiedCacheDir());
+                FileUtil.deleteFileOrDir(cacheDir);
+                DiskLruJournal journal = loadJournal();
+                if (journal != null) journal.clear();
+                mLegacyCount.set(0);
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
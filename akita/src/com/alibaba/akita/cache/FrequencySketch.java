@@ -0,0 +1,114 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alibaba.akita.cache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free count-min sketch of 4-bit counters estimating how often keys are accessed,
+ * all counters are halved periodically so the old popularity fades (TinyLFU).
+ * The 4 counters of a key are in one long, one in each quarter of it,
+ * so counting an access is one CAS.
+ * @author zhe.yangz
+ */
+class FrequencySketch {
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    /** 16 counters per long */
+    private final AtomicLongArray mTable;
+    private final int mTableMask;
+    private final int mSampleSize;
+    private final AtomicInteger mAdditions = new AtomicInteger();
+
+    /**
+     * @param expectedEntries about how many entries the cache holds
+     */
+    FrequencySketch(int expectedEntries) {
+        int length = 16;
+        while (length < expectedEntries && length < (1 << 24)) {
+            length <<= 1;
+        }
+        mTable = new AtomicLongArray(length);
+        mTableMask = length - 1;
+        mSampleSize = 10 * Math.max(expectedEntries, 16);
+    }
+
+    /**
+     * @return estimated access count of the key, 0 to 15
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        long value = mTable.get(hash & mTableMask);
+        int min = 15;
+        for (int i = 0; i < 4; i++) {
+            min = Math.min(min, (int) ((value >>> offsetOf(hash, i)) & 0xfL));
+        }
+        return min;
+    }
+
+    /**
+     * Count an access of the key
+     */
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        int index = hash & mTableMask;
+        while (true) {
+            long value = mTable.get(index);
+            long updated = value;
+            for (int i = 0; i < 4; i++) {
+                int offset = offsetOf(hash, i);
+                if (((value >>> offset) & 0xfL) != 0xfL) {
+                    updated += 1L << offset;
+                }
+            }
+            if (updated == value) return; // saturated
+            if (mTable.compareAndSet(index, value, updated)) break;
+        }
+        if (mAdditions.incrementAndGet() >= mSampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Halve all counters; concurrent increments may be lost, which the sketch tolerates
+     */
+    private synchronized void reset() {
+        if (mAdditions.get() < mSampleSize) return; // another thread did
+        for (int i = 0; i <= mTableMask; i++) {
+            while (true) {
+                long value = mTable.get(i);
+                if (mTable.compareAndSet(i, value, (value >>> 1) & RESET_MASK)) break;
+            }
+        }
+        mAdditions.set(mSampleSize / 2);
+    }
+
+    /**
+     * @return bit offset of the i-th counter of the hash, in the i-th quarter of the long
+     */
+    private static int offsetOf(int hash, int i) {
+        return ((i << 2) + ((hash >>> (24 + (i << 1))) & 3)) << 2;
+    }
+
+    private static int spread(int h) {
+        h ^= (h >>> 17);
+        h *= 0xed5ad4bb;
+        h ^= (h >>> 11);
+        h *= 0xac4c1b51;
+        h ^= (h >>> 15);
+        return h;
+    }
+}
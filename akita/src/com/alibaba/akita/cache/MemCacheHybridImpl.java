@@ -0,0 +1,108 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alibaba.akita.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Two tier MemCache: a bounded strong LRU of the recent entries, whose evicted
+ * entries are demoted to a soft reference tier kept until GC needs the memory.
+ * A soft hit is promoted back to the LRU.
+ * The writes and the promotions hold the lock of this cache, so a promotion can not
+ * overwrite a value put meanwhile; the strong hits take no lock.
+ * @author zhe.yangz
+ */
+public class MemCacheHybridImpl<K, V> implements MemCache<K, V> {
+
+    private final MemCacheSizedLruImpl<K, V> mHardCache;
+    private final MemCacheSoftRefImpl<K, V> mSoftCache = new MemCacheSoftRefImpl<K, V>();
+
+    /**
+     * @param hardMaxSize max total size of the strong LRU tier
+     * @param weigher null to count 1 per entry
+     */
+    protected MemCacheHybridImpl(int hardMaxSize, Weigher<K, V> weigher) {
+        mHardCache = new MemCacheSizedLruImpl<K, V>(hardMaxSize, weigher,
+                new EvictionListener<K, V>() {
+                    @Override
+                    public void onEvicted(K key, V value) {
+                        mSoftCache.put(key, value);
+                    }
+                });
+    }
+
+    @Override
+    public V get(K key) {
+        V value = mHardCache.get(key);
+        if (value != null) return value;
+        return promote(key);
+    }
+
+    private synchronized V promote(K key) {
+        V value = mHardCache.get(key); // put meanwhile
+        if (value != null) return value;
+
+        value = mSoftCache.remove(key);
+        if (value != null) {
+            mHardCache.put(key, value);
+        }
+        return value;
+    }
+
+    @Override
+    public synchronized V put(K key, V value) {
+        V softPrevious = mSoftCache.remove(key);
+        V previous = mHardCache.put(key, value);
+        return (previous != null) ? previous : softPrevious;
+    }
+
+    @Override
+    public synchronized V remove(K key) {
+        V softPrevious = mSoftCache.remove(key);
+        V previous = mHardCache.remove(key);
+        return (previous != null) ? previous : softPrevious;
+    }
+
+    @Override
+    public synchronized void clear() {
+        mHardCache.clear();
+        mSoftCache.clear();
+    }
+
+    /**
+     * @return the strong entries, eldest first, then the soft ones not yet GCed
+     */
+    @Override
+    public Map<K, V> snapshot() {
+        LinkedHashMap<K, V> snapshot = new LinkedHashMap<K, V>(mSoftCache.snapshot());
+        snapshot.putAll(mHardCache.snapshot());
+        return snapshot;
+    }
+
+    /**
+     * @return total size of the strong tier
+     */
+    public int getHardSize() {
+        return mHardCache.getSize();
+    }
+
+    /**
+     * @return count of the soft tier's entries
+     */
+    public int getSoftCount() {
+        return mSoftCache.size();
+    }
+}
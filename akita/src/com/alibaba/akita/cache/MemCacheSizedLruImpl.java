@@ -0,0 +1,164 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alibaba.akita.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU MemCache bounded by the total size of the values, working on every API level.
+ * Sizes are counted by the Weigher, 1 per entry if none.
+ * @author zhe.yangz
+ */
+public class MemCacheSizedLruImpl<K, V> implements MemCache<K, V> {
+
+    private final LinkedHashMap<K, V> mMap = new LinkedHashMap<K, V>(16, 0.75f, true);
+    private final int mMaxSize;
+    private final Weigher<K, V> mWeigher;
+    private final EvictionListener<K, V> mEvictionListener;
+    private int mSize = 0;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    /**
+     * @param maxSize max total size of the values
+     * @param weigher null to count 1 per entry
+     * @param evictionListener maybe null
+     */
+    protected MemCacheSizedLruImpl(int maxSize, Weigher<K, V> weigher,
+                                   EvictionListener<K, V> evictionListener) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        mWeigher = weigher;
+        mEvictionListener = evictionListener;
+    }
+
+    @Override
+    public synchronized V get(K key) {
+        V value = mMap.get(key);
+        if (value == null) {
+            mMissCount++;
+        } else {
+            mHitCount++;
+        }
+        return value;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        int size = sizeOf(key, value);
+        V previous;
+        Map<K, V> evicted;
+        synchronized (this) {
+            if (size > mMaxSize) {
+                // never fits, so it only evicts the previous value
+                previous = mMap.remove(key);
+                if (previous != null) mSize -= sizeOf(key, previous);
+                return previous;
+            }
+            previous = mMap.put(key, value);
+            mSize += size;
+            if (previous != null) mSize -= sizeOf(key, previous);
+            evicted = trimToSize();
+        }
+        notifyEvicted(evicted);
+        return previous;
+    }
+
+    @Override
+    public synchronized V remove(K key) {
+        V previous = mMap.remove(key);
+        if (previous != null) mSize -= sizeOf(key, previous);
+        return previous;
+    }
+
+    @Override
+    public synchronized void clear() {
+        mMap.clear();
+        mSize = 0;
+    }
+
+    @Override
+    public synchronized Map<K, V> snapshot() {
+        return new LinkedHashMap<K, V>(mMap);
+    }
+
+    /**
+     * @return total size of the cached values
+     */
+    public synchronized int getSize() {
+        return mSize;
+    }
+
+    public int getMaxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * Evict the least recently used entries until the size is within max size
+     * @return evicted entries to notify out of the lock, null if none or no listener
+     */
+    private Map<K, V> trimToSize() {
+        Map<K, V> evicted = null;
+        Iterator<Map.Entry<K, V>> iter = mMap.entrySet().iterator();
+        while (mSize > mMaxSize && iter.hasNext()) {
+            Map.Entry<K, V> eldest = iter.next();
+            iter.remove();
+            mSize -= sizeOf(eldest.getKey(), eldest.getValue());
+            mEvictionCount++;
+            if (mEvictionListener != null) {
+                if (evicted == null) evicted = new LinkedHashMap<K, V>();
+                evicted.put(eldest.getKey(), eldest.getValue());
+            }
+        }
+        return evicted;
+    }
+
+    private void notifyEvicted(Map<K, V> evicted) {
+        if (evicted == null) return;
+        for (Map.Entry<K, V> entry : evicted.entrySet()) {
+            mEvictionListener.onEvicted(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private int sizeOf(K key, V value) {
+        if (mWeigher == null) return 1;
+        int size = mWeigher.sizeOf(key, value);
+        if (size < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return size;
+    }
+}
@@ -14,10 +14,9 @@
 package com.alibaba.akita.cache;
 
 import android.graphics.Bitmap;
-import android.nfc.Tag;
 import com.alibaba.akita.cache.MemCache;
-import com.alibaba.akita.util.Log;
 
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -26,46 +25,46 @@ import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 一个MemCacheSoftRefImpl实例中存在一个基于softRef的Cache
+ * The references cleared by GC are purged through a ReferenceQueue on each operation,
+ * so the map never fills with dead references.
  * @author zhe.yangz 2012-3-30 下午03:23:19
  */
 public class MemCacheSoftRefImpl<K, V> implements MemCache<K, V> {
     private static final String TAG = "MemCacheSoftRefImpl<K, V>";
 
     // Soft cache for such as bitmaps
-    private static final int HARD_CACHE_CAPACITY = 20;
-    private final ConcurrentHashMap<K, SoftReference<V>> mSoftVauleCache =
-            new ConcurrentHashMap<K, SoftReference<V>>(HARD_CACHE_CAPACITY);
+    private final ConcurrentHashMap<K, KeyedSoftReference<K, V>> mSoftVauleCache =
+            new ConcurrentHashMap<K, KeyedSoftReference<K, V>>();
+    private final ReferenceQueue<V> mQueue = new ReferenceQueue<V>();
 
     /**
-     * 已经构造出一个HARD_CACHE_CAPACITY的
-     * SoftRef Cache.
+     * SoftReference knowing its key, to be purged from the map once cleared
      */
+    private static class KeyedSoftReference<K, V> extends SoftReference<V> {
+        final K key;
+
+        KeyedSoftReference(K key, V value, ReferenceQueue<? super V> queue) {
+            super(value, queue);
+            this.key = key;
+        }
+    }
+
     protected MemCacheSoftRefImpl(){
     }
     
     public V get(K key){
+        purge();
         // Then try the soft reference cache
-        SoftReference<V> valueReference = mSoftVauleCache.get(key);
+        KeyedSoftReference<K, V> valueReference = mSoftVauleCache.get(key);
         if (valueReference != null) {
-            final V bitmap = valueReference.get();
-            if (bitmap instanceof Bitmap) { // for Bitmap of V
-                if (bitmap != null && !((Bitmap)bitmap).isRecycled()) {
-                    // V found in soft cache
-                    return bitmap;
-                } else {
-                    // Soft reference has been GCed
-                    mSoftVauleCache.remove(key);
-                    return null;
-                }
+            final V value = valueReference.get();
+            if (isAlive(value)) {
+                // V found in soft cache
+                return value;
             } else {
-                if (bitmap != null) {
-                    // V found in soft cache
-                    return bitmap;
-                } else {
-                    // Soft reference has been GCed
-                    mSoftVauleCache.remove(key);
-                    return null;
-                }
+                // Soft reference has been GCed, or the bitmap recycled
+                mSoftVauleCache.remove(key, valueReference);
+                return null;
             }
         }
         return null;
@@ -78,8 +77,10 @@ public class MemCacheSoftRefImpl<K, V> implements MemCache<K, V> {
      * @return if null, may be no old value, or old value has been GCed.
      */
     public V put(K key, V value) {
+        purge();
         if (key != null && value != null) {
-            SoftReference<V> sr = mSoftVauleCache.put(key, new SoftReference<V>(value));
+            SoftReference<V> sr = mSoftVauleCache.put(
+                    key, new KeyedSoftReference<K, V>(key, value, mQueue));
             if (sr != null) {
                 return sr.get();
             } else {
@@ -96,6 +97,7 @@ public class MemCacheSoftRefImpl<K, V> implements MemCache<K, V> {
      * @return if null, may be has no such key, or key's value has been GCed.
      */
     public V remove(K key) {
+        purge();
         SoftReference<V> sr = mSoftVauleCache.remove(key);
         if (sr != null) {
             return sr.get();
@@ -106,15 +108,44 @@ public class MemCacheSoftRefImpl<K, V> implements MemCache<K, V> {
 
     @Override
     public void clear() {
+        purge();
         mSoftVauleCache.clear();
     }
 
     /**
-     * no need to implement, so return new map now.
-     * @return
+     * @return the values not yet GCed
      */
     @Override
     public Map<K, V> snapshot() {
-        return new LinkedHashMap<K, V>();
+        purge();
+        LinkedHashMap<K, V> snapshot = new LinkedHashMap<K, V>();
+        for (Map.Entry<K, KeyedSoftReference<K, V>> entry : mSoftVauleCache.entrySet()) {
+            V value = entry.getValue().get();
+            if (isAlive(value)) snapshot.put(entry.getKey(), value);
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return count of references in map, some maybe cleared but not purged yet
+     */
+    public int size() {
+        purge();
+        return mSoftVauleCache.size();
+    }
+
+    /**
+     * Remove the entries whose reference has been cleared by GC
+     */
+    @SuppressWarnings("unchecked")
+    private void purge() {
+        KeyedSoftReference<K, V> ref;
+        while ((ref = (KeyedSoftReference<K, V>) mQueue.poll()) != null) {
+            mSoftVauleCache.remove(ref.key, ref);
+        }
+    }
+
+    private static boolean isAlive(Object value) {
+        return value != null && !(value instanceof Bitmap && ((Bitmap) value).isRecycled());
     }
 }
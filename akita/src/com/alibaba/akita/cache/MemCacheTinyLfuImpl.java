@@ -0,0 +1,381 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alibaba.akita.cache;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped MemCache with W-TinyLFU eviction, for hot caches read by many threads.
+ * New entries enter a small LRU window; to enter the main segmented LRU a window victim
+ * must be accessed more often than the main victim, as estimated by a FrequencySketch.
+ * So a scan of once-used entries, such as a long product feed, doesn't flush the hot ones.
+ * Reads take no lock: they are buffered per stripe and replayed when the lock is free.
+ * @author zhe.yangz
+ */
+public class MemCacheTinyLfuImpl<K, V> implements MemCache<K, V> {
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private static final int READ_BUFFER_SIZE = 32;
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+    /** drain the read buffer every this many reads, a power of 2 */
+    private static final int READ_DRAIN_THRESHOLD = 8;
+    /** min max size of a stripe, smaller caches use fewer stripes */
+    private static final int MIN_STRIPE_SIZE = 32;
+
+    private final Stripe<K, V>[] mStripes;
+    private final int mStripeMask;
+    private final FrequencySketch mSketch;
+    private final Weigher<K, V> mWeigher;
+    private final EvictionListener<K, V> mEvictionListener;
+    private final int mMaxSize;
+
+    private static final class Node<K, V> {
+        final K key;
+        volatile V value;
+        int weight;
+        int queue;
+        Node<K, V> prev;
+        Node<K, V> next;
+        /** false once removed, so a buffered read of it is ignored */
+        boolean alive = true;
+
+        Node(K key, V value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Intrusive doubly linked LRU queue, head is the eldest
+     */
+    private static final class Queue<K, V> {
+        final Node<K, V> sentinel = new Node<K, V>(null, null, 0);
+        int weight;
+
+        Queue() {
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+        }
+
+        Node<K, V> eldest() {
+            return (sentinel.next == sentinel) ? null : sentinel.next;
+        }
+
+        void addNewest(Node<K, V> node) {
+            node.prev = sentinel.prev;
+            node.next = sentinel;
+            sentinel.prev.next = node;
+            sentinel.prev = node;
+            weight += node.weight;
+        }
+
+        void unlink(Node<K, V> node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+            weight -= node.weight;
+        }
+
+        void clear() {
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+            weight = 0;
+        }
+    }
+
+    private static final class Stripe<K, V> {
+        final ConcurrentHashMap<K, Node<K, V>> map = new ConcurrentHashMap<K, Node<K, V>>();
+        final ReentrantLock lock = new ReentrantLock();
+        final Queue<K, V> window = new Queue<K, V>();
+        final Queue<K, V> probation = new Queue<K, V>();
+        final Queue<K, V> protectedQueue = new Queue<K, V>();
+        final AtomicReferenceArray<Node<K, V>> readBuffer =
+                new AtomicReferenceArray<Node<K, V>>(READ_BUFFER_SIZE);
+        final AtomicInteger readCount = new AtomicInteger();
+        /** readCount when last drained, under lock */
+        int drainedCount;
+        final FrequencySketch sketch;
+        final int maxSize;
+        final int maxWindow;
+        final int maxProtected;
+
+        Stripe(FrequencySketch sketch, int maxSize) {
+            this.sketch = sketch;
+            this.maxSize = maxSize;
+            this.maxWindow = Math.max(maxSize / 100, 1);
+            this.maxProtected = (maxSize - maxWindow) * 4 / 5;
+        }
+
+        void recordRead(Node<K, V> node) {
+            int count = readCount.getAndIncrement();
+            readBuffer.lazySet(count & READ_BUFFER_MASK, node); // lossy, an overwritten read is dropped
+            // masked, as the count goes negative once wrapped
+            if ((count & (READ_DRAIN_THRESHOLD - 1)) == READ_DRAIN_THRESHOLD - 1 && lock.tryLock()) {
+                try {
+                    drainReads();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /** under lock */
+        void drainReads() {
+            int count = readCount.get();
+            if (count == drainedCount) return;
+            drainedCount = count;
+            for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+                if (readBuffer.get(i) == null) continue;
+                Node<K, V> node = readBuffer.getAndSet(i, null);
+                if (node != null && node.alive) onAccess(node);
+            }
+        }
+
+        /** under lock */
+        void onAccess(Node<K, V> node) {
+            switch (node.queue) {
+                case WINDOW:
+                    window.unlink(node);
+                    window.addNewest(node);
+                    break;
+                case PROBATION:
+                    probation.unlink(node);
+                    node.queue = PROTECTED;
+                    protectedQueue.addNewest(node);
+                    // demote the eldest protected ones
+                    while (protectedQueue.weight > maxProtected) {
+                        Node<K, V> demoted = protectedQueue.eldest();
+                        protectedQueue.unlink(demoted);
+                        demoted.queue = PROBATION;
+                        probation.addNewest(demoted);
+                    }
+                    break;
+                default:
+                    protectedQueue.unlink(node);
+                    protectedQueue.addNewest(node);
+                    break;
+            }
+        }
+
+        /** under lock */
+        void unlink(Node<K, V> node) {
+            node.alive = false;
+            queueOf(node).unlink(node);
+        }
+
+        Queue<K, V> queueOf(Node<K, V> node) {
+            return (node.queue == WINDOW) ? window
+                    : (node.queue == PROBATION) ? probation : protectedQueue;
+        }
+
+        /**
+         * Move the window overflow to probation, then evict from probation
+         * the less frequent one of its eldest and the newcomer, until within max size.
+         * Under lock.
+         */
+        ArrayList<Node<K, V>> evict(ArrayList<Node<K, V>> evicted) {
+            // the window's overflow are the newcomers at the newest end of probation
+            Node<K, V> candidate = null;
+            while (window.weight > maxWindow) {
+                Node<K, V> node = window.eldest();
+                window.unlink(node);
+                node.queue = PROBATION;
+                probation.addNewest(node);
+                if (candidate == null) candidate = node;
+            }
+
+            while (window.weight + probation.weight + protectedQueue.weight > maxSize) {
+                Node<K, V> victim = probation.eldest();
+                if (victim == null) {
+                    victim = (protectedQueue.eldest() != null) ? protectedQueue.eldest()
+                            : window.eldest();
+                } else if (candidate != null && candidate != victim
+                        && sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+                    victim = candidate; // not admitted, less popular than the eldest
+                }
+                if (victim == candidate) {
+                    candidate = (candidate.next == probation.sentinel) ? null : candidate.next;
+                }
+                unlink(victim);
+                map.remove(victim.key, victim);
+                if (evicted != null) evicted.add(victim);
+            }
+            return evicted;
+        }
+    }
+
+    /**
+     * @param maxSize max total size of the values
+     * @param expectedEntries about how many entries fit, to size the frequency sketch
+     * @param weigher null to count 1 per entry
+     * @param evictionListener maybe null
+     */
+    protected MemCacheTinyLfuImpl(int maxSize, int expectedEntries, Weigher<K, V> weigher,
+                                  EvictionListener<K, V> evictionListener) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        mWeigher = weigher;
+        mEvictionListener = evictionListener;
+        mSketch = new FrequencySketch(expectedEntries);
+
+        int stripes = 1;
+        int maxStripes = Runtime.getRuntime().availableProcessors() * 2;
+        while (stripes * 2 <= maxStripes && maxSize / (stripes * 2) >= MIN_STRIPE_SIZE) {
+            stripes *= 2;
+        }
+        mStripes = newStripeArray(stripes);
+        for (int i = 0; i < stripes; i++) {
+            mStripes[i] = new Stripe<K, V>(mSketch, maxSize / stripes);
+        }
+        mStripeMask = stripes - 1;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <K, V> Stripe<K, V>[] newStripeArray(int size) {
+        return new Stripe[size];
+    }
+
+    private Stripe<K, V> stripeOf(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return mStripes[h & mStripeMask];
+    }
+
+    @Override
+    public V get(K key) {
+        mSketch.increment(key);
+        Stripe<K, V> stripe = stripeOf(key);
+        Node<K, V> node = stripe.map.get(key);
+        if (node == null) return null;
+        stripe.recordRead(node);
+        return node.value;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        int weight = (mWeigher == null) ? 1 : mWeigher.sizeOf(key, value);
+        if (weight < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        Stripe<K, V> stripe = stripeOf(key);
+        ArrayList<Node<K, V>> evicted = (mEvictionListener == null) ? null
+                : new ArrayList<Node<K, V>>(1);
+        V previous = null;
+        stripe.lock.lock();
+        try {
+            stripe.drainReads();
+            Node<K, V> node = null;
+            if (weight <= stripe.maxSize) {
+                node = new Node<K, V>(key, value, weight);
+                node.queue = WINDOW;
+                stripe.window.addNewest(node);
+            }
+            Node<K, V> old = (node == null) ? stripe.map.remove(key) : stripe.map.put(key, node);
+            if (old != null) {
+                previous = old.value;
+                stripe.unlink(old);
+            }
+            if (node != null) stripe.evict(evicted);
+        } finally {
+            stripe.lock.unlock();
+        }
+        if (evicted != null) {
+            for (Node<K, V> node : evicted) {
+                mEvictionListener.onEvicted(node.key, node.value);
+            }
+        }
+        return previous;
+    }
+
+    @Override
+    public V remove(K key) {
+        Stripe<K, V> stripe = stripeOf(key);
+        stripe.lock.lock();
+        try {
+            Node<K, V> node = stripe.map.remove(key);
+            if (node == null) return null;
+            stripe.unlink(node);
+            return node.value;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (Stripe<K, V> stripe : mStripes) {
+            stripe.lock.lock();
+            try {
+                for (Node<K, V> node : stripe.map.values()) {
+                    node.alive = false;
+                }
+                stripe.map.clear();
+                stripe.window.clear();
+                stripe.probation.clear();
+                stripe.protectedQueue.clear();
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public Map<K, V> snapshot() {
+        LinkedHashMap<K, V> snapshot = new LinkedHashMap<K, V>();
+        for (Stripe<K, V> stripe : mStripes) {
+            for (Node<K, V> node : stripe.map.values()) {
+                snapshot.put(node.key, node.value);
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return total size of the cached values
+     */
+    public int getSize() {
+        int size = 0;
+        for (Stripe<K, V> stripe : mStripes) {
+            stripe.lock.lock();
+            try {
+                size += stripe.window.weight + stripe.probation.weight + stripe.protectedQueue.weight;
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    public int getMaxSize() {
+        return mMaxSize;
+    }
+}
@@ -9,6 +9,8 @@ package com.alibaba.akita.cache;
 
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * K\V String 
@@ -18,15 +20,62 @@ public interface SimpleCache {
 
     public String get(String key);
 
+    /**
+     * @param key
+     * @return the value as bytes, a value put as String is in UTF-8
+     */
+    public byte[] getBytes(String key);
+
     /**
      * get Latest items, max to num
      * @param num
      * @return
      */
     public ArrayList<String> getLatest(int num);
+    /**
+     * @param key
+     * @param value
+     * @return the old value, null if none or expired
+     */
     public String put(String key, String value);
+
+    /**
+     * put the binary value
+     * @param key
+     * @param value
+     */
+    public void put(String key, byte[] value);
+    /**
+     * @param key
+     * @return the old value, null if none or expired
+     */
     public String remove(String key);
     public void removeAll();
+
+    /**
+     * @param keys
+     * @return the cached items of the keys, the missing keys are absent
+     */
+    public Map<String, String> getAll(Collection<String> keys);
+
+    /**
+     * put all in one transaction
+     * @param kvs
+     */
+    public void putAll(Map<String, String> kvs);
+
+    /**
+     * remove the keys in one transaction
+     * @param keys
+     */
+    public void removeAll(Collection<String> keys);
+
+    /**
+     * run the puts and removes in ops in one transaction, which commits when ops returns
+     * and rolls back if it throws
+     * @param ops
+     */
+    public void batch(Runnable ops);
     /**
      * Close the db and sth. else.
      * @return
@@ -0,0 +1,221 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alibaba.akita.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * SimpleCache with a bounded MemCache in front of another SimpleCache.
+ * Reads go through to the backing cache on miss; writes go to the backing cache and
+ * invalidate the key in memory, so concurrent writes of a key cannot leave memory
+ * holding the older value, the next read loads the winner. A value is dropped
+ * from memory once older than the reserve time; its cacheTime is that of the backing row
+ * if the backing cache is a SimpleCacheSqliteImpl, otherwise the time it was loaded.
+ * Writes to the backing cache not made through this instance are not seen until
+ * the value is evicted from memory.
+ *
+ * @author zhe.yangz
+ */
+public class SimpleCacheMemTierImpl implements SimpleCache {
+
+    private final SimpleCache mBacking;
+    private final MemCache<String, CacheObject> mMemCache;
+    private final long mReserveTime;
+    /** increased on each write, a value read before a write is not put in memory */
+    private long mWriteCount = 0;
+
+    /**
+     * @param backing
+     * @param memCache such as AkCacheManager.newMemLruCache(size)
+     * @param reserveTime millis a value is kept, as of the backing cache
+     */
+    public SimpleCacheMemTierImpl(SimpleCache backing, MemCache<String, CacheObject> memCache,
+                                  long reserveTime) {
+        mBacking = backing;
+        mMemCache = memCache;
+        mReserveTime = reserveTime;
+    }
+
+    /**
+     * @return the cache this one reads and writes through to
+     */
+    public SimpleCache getBacking() {
+        return mBacking;
+    }
+
+    @Override
+    public String get(String key) {
+        CacheObject co = mMemCache.get(key);
+        if (co != null) {
+            if (!isExpired(co)) return co.value;
+            mMemCache.remove(key);
+        }
+
+        long writeCount = getWriteCount();
+        co = load(key);
+        if (co == null) return null;
+        remember(co, writeCount);
+        return co.value;
+    }
+
+    @Override
+    public byte[] getBytes(String key) {
+        return mBacking.getBytes(key); // the backing cache is up to date
+    }
+
+    @Override
+    public ArrayList<String> getLatest(int num) {
+        return mBacking.getLatest(num);
+    }
+
+    @Override
+    public String put(String key, String value) {
+        String old = mBacking.put(key, value);
+        invalidate(key);
+        return old;
+    }
+
+    @Override
+    public void put(String key, byte[] value) {
+        mBacking.put(key, value);
+        invalidate(key);
+    }
+
+    @Override
+    public String remove(String key) {
+        String old = mBacking.remove(key);
+        invalidate(key);
+        return old;
+    }
+
+    @Override
+    public void removeAll() {
+        mBacking.removeAll();
+        invalidateAll();
+    }
+
+    @Override
+    public Map<String, String> getAll(Collection<String> keys) {
+        HashMap<String, String> kvs = new HashMap<String, String>();
+        ArrayList<String> misses = null;
+        for (String key : keys) {
+            CacheObject co = mMemCache.get(key);
+            if (co != null && !isExpired(co)) {
+                kvs.put(key, co.value);
+            } else {
+                if (misses == null) misses = new ArrayList<String>();
+                misses.add(key);
+            }
+        }
+        if (misses == null) return kvs;
+
+        long writeCount = getWriteCount();
+        ArrayList<CacheObject> loaded = new ArrayList<CacheObject>(misses.size());
+        if (mBacking instanceof SimpleCacheSqliteImpl) {
+            // it reads key by key anyway, and knows the cacheTime
+            for (String key : misses) {
+                CacheObject co = load(key);
+                if (co != null) loaded.add(co);
+            }
+        } else {
+            for (Map.Entry<String, String> kv : mBacking.getAll(misses).entrySet()) {
+                if (kv.getValue() != null) loaded.add(new CacheObject(kv.getKey(), kv.getValue()));
+            }
+        }
+        synchronized (this) {
+            for (CacheObject co : loaded) {
+                kvs.put(co.key, co.value);
+                if (writeCount == mWriteCount) mMemCache.put(co.key, co);
+            }
+        }
+        return kvs;
+    }
+
+    @Override
+    public void putAll(Map<String, String> kvs) {
+        mBacking.putAll(kvs);
+        removeFromMemory(kvs.keySet());
+    }
+
+    @Override
+    public void removeAll(Collection<String> keys) {
+        mBacking.removeAll(keys);
+        removeFromMemory(keys);
+    }
+
+    /**
+     * The writes of ops through this cache invalidate the memory at once,
+     * if ops throws the memory is cleared, the values read meanwhile are rolled back.
+     */
+    @Override
+    public void batch(Runnable ops) {
+        boolean committed = false;
+        try {
+            mBacking.batch(ops);
+            committed = true;
+        } finally {
+            if (!committed) invalidateAll();
+        }
+    }
+
+    @Override
+    public void close() {
+        invalidateAll();
+        mBacking.close();
+    }
+
+    private CacheObject load(String key) {
+        if (mBacking instanceof SimpleCacheSqliteImpl) {
+            return ((SimpleCacheSqliteImpl) mBacking).getCacheObject(key);
+        }
+        String value = mBacking.get(key);
+        return (value == null) ? null : new CacheObject(key, value);
+    }
+
+    private boolean isExpired(CacheObject co) {
+        return System.currentTimeMillis() - co.cacheTime > mReserveTime;
+    }
+
+    private synchronized long getWriteCount() {
+        return mWriteCount;
+    }
+
+    /**
+     * Put the loaded value in memory, unless there were writes since it was read
+     */
+    private synchronized void remember(CacheObject co, long writeCount) {
+        if (writeCount == mWriteCount) mMemCache.put(co.key, co);
+    }
+
+    private synchronized void invalidate(String key) {
+        mWriteCount++;
+        mMemCache.remove(key);
+    }
+
+    private synchronized void removeFromMemory(Collection<String> keys) {
+        mWriteCount++;
+        for (String key : keys) {
+            mMemCache.remove(key);
+        }
+    }
+
+    private synchronized void invalidateAll() {
+        mWriteCount++;
+        mMemCache.clear();
+    }
+}
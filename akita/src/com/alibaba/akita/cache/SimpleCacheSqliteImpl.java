@@ -7,23 +7,87 @@
  */
 package com.alibaba.akita.cache;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDatabase.CursorFactory;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import com.alibaba.akita.util.Log;
+import com.alibaba.akita.util.StringUtil;
 
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * reserveTime==0  1年
  * 默认为24小时
+ * One connection per db file is kept open and shared by the tables (tags) in it,
+ * in WAL mode since Honeycomb so that reads do not wait behind writes;
+ * the writes to the file are serialized, and the statements are compiled once.
+ * Reads skip the expired rows by the indexed cacheTime, and never write;
+ * a background sweeper deletes the expired rows in small batches.
+ * Long values are deflated into blobs, and the blobs beyond CHUNK_SIZE are split
+ * into rows of the chunk table, so no row outgrows a CursorWindow.
  * @author zhe.yangz 2012-3-30 下午03:23:19
  */
 public class SimpleCacheSqliteImpl implements SimpleCache {
+    private static final String TAG = "SimpleCacheSqliteImpl";
+    /**
+     * 过期数据的清理间隔
+     */
+    private static final long SWEEP_INTERVAL_MILLIS = 10 * 60 * 1000L;
+    /**
+     * 每个事务最多删除的过期数据条数
+     */
+    private static final int SWEEP_BATCH_SIZE = 200;
+    /**
+     * 达到该长度(字符数或字节数)的数据压缩后保存
+     */
+    public static final int DEFAULT_COMPRESS_THRESHOLD = 4 * 1024;
+    /**
+     * 超过该长度的blob分块保存
+     */
+    private static final int CHUNK_SIZE = 256 * 1024;
+
+    /** blob header: flags, raw length; chunked: then payload length and crc32 */
+    private static final int FLAG_DEFLATED = 1;
+    private static final int FLAG_CHUNKED = 2;
+    private static final int HEADER_SIZE = 1 + 4;
+    private static final int CHUNKED_HEADER_SIZE = HEADER_SIZE + 4 + 4;
+
+    /** sweeps the expired rows of all the SimpleCaches */
+    private static final ScheduledThreadPoolExecutor sSweeper = new ScheduledThreadPoolExecutor(1,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "AkSimpleCacheSweeper");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
     private SQLiteHelper mSqliteHelper = null;
     private long mReserveTime = 24 * 3600 * 1000L;
+    private volatile int mCompressThreshold = DEFAULT_COMPRESS_THRESHOLD;
+    private final ScheduledFuture<?> mSweep;
     
     /**
      * 
@@ -36,19 +100,90 @@ public class SimpleCacheSqliteImpl implements SimpleCache {
         } else if (reserveTime == 0){
             mReserveTime = 365 * 24 * 3600 * 1000L;
         }
+        Sweep sweep = new Sweep(this);
+        mSweep = sSweeper.scheduleWithFixedDelay(sweep,
+                SWEEP_INTERVAL_MILLIS / 10, SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        sweep.mFuture = mSweep;
+    }
+
+    /**
+     * Runs the sweep while the cache is reachable, so an unclosed cache can be collected
+     */
+    private static class Sweep implements Runnable {
+        private final WeakReference<SimpleCacheSqliteImpl> mCache;
+        volatile ScheduledFuture<?> mFuture;
+
+        Sweep(SimpleCacheSqliteImpl cache) {
+            mCache = new WeakReference<SimpleCacheSqliteImpl>(cache);
+        }
+
+        @Override
+        public void run() {
+            SimpleCacheSqliteImpl cache = mCache.get();
+            if (cache == null) {
+                if (mFuture != null) mFuture.cancel(false);
+                return;
+            }
+            try {
+                cache.sweep();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "failed to sweep the expired", e);
+            }
+        }
+    }
+
+    /**
+     * Delete the expired rows, a batch in a transaction so the writers do not wait long
+     * @return count of the deleted rows
+     */
+    public int sweep() {
+        int total = 0;
+        int deleted;
+        do {
+            deleted = mSqliteHelper.deleteExpiredCOs(expiredBefore(), SWEEP_BATCH_SIZE);
+            total += deleted;
+        } while (deleted >= SWEEP_BATCH_SIZE);
+        return total;
+    }
+
+    /**
+     * @param threshold values of at least so many chars (or bytes) are deflated, -1 never
+     */
+    public void setCompressThreshold(int threshold) {
+        mCompressThreshold = threshold;
+    }
+
+    /**
+     * @return the rows cached before it are expired
+     */
+    private long expiredBefore() {
+        return System.currentTimeMillis() - mReserveTime;
     }
     
     @Override
     public String get(String key) {
         CacheObject co = mSqliteHelper.getCOByKey(key);
-        if (co == null) {
-            return null;
-        } else if ((System.currentTimeMillis()-co.cacheTime) > mReserveTime) {
-            remove(key);
-            return null;
-        } else {
-            return co.value;
-        }
+        return (co == null) ? null : co.value;
+    }
+
+    /**
+     * @param key
+     * @return the value and its cacheTime, null if missing or expired
+     */
+    public CacheObject getCacheObject(String key) {
+        return mSqliteHelper.getCOByKey(key);
+    }
+
+    /**
+     * @return millis a value is kept since put
+     */
+    public long getReserveTime() {
+        return mReserveTime;
+    }
+
+    @Override
+    public byte[] getBytes(String key) {
+        return mSqliteHelper.getBytesByKey(key);
     }
 
     public ArrayList<String> getLatest(int num) {
@@ -56,11 +191,7 @@ public class SimpleCacheSqliteImpl implements SimpleCache {
         ArrayList<String> rets = new ArrayList<String>();
         if (cos != null) {
             for (CacheObject co : cos) {
-                if ((System.currentTimeMillis()-co.cacheTime) > mReserveTime) {
-                    remove(co.key);
-                } else {
-                    rets.add(co.value);
-                }
+                rets.add(co.value);
             }
         }
         return rets;
@@ -68,27 +199,17 @@ public class SimpleCacheSqliteImpl implements SimpleCache {
 
     @Override
     public String put(String key, String value) {
-        String oldValue = null;
-        
-        CacheObject co = mSqliteHelper.getCOByKey(key);
-        if (co != null) {
-            oldValue = co.value;
-            mSqliteHelper.updateCOByKey(key, value);
-        } else {
-            mSqliteHelper.insertCOByKey(key, value);
-        }
-        return oldValue;
+        return mSqliteHelper.putCO(key, value);
+    }
+
+    @Override
+    public void put(String key, byte[] value) {
+        mSqliteHelper.putBytes(key, value);
     }
 
     @Override
     public String remove(String key) {
-        String oldValue = null;
-        CacheObject co = mSqliteHelper.getCOByKey(key);
-        if (co != null) {
-            oldValue = co.value;
-            mSqliteHelper.deleteCOByKey(key);
-        }
-        return oldValue;
+        return mSqliteHelper.deleteCOByKey(key);
     }
 
     @Override
@@ -96,14 +217,187 @@ public class SimpleCacheSqliteImpl implements SimpleCache {
         mSqliteHelper.deleteAllKey();
     }
 
+    @Override
+    public HashMap<String, String> getAll(Collection<String> keys) {
+        HashMap<String, String> kvs = new HashMap<String, String>();
+        for (String key : keys) {
+            CacheObject co = mSqliteHelper.getCOByKey(key);
+            if (co != null) kvs.put(key, co.value);
+        }
+        return kvs;
+    }
+
+    @Override
+    public void putAll(Map<String, String> kvs) {
+        mSqliteHelper.putCOs(kvs);
+    }
+
+    @Override
+    public void removeAll(Collection<String> keys) {
+        mSqliteHelper.deleteCOsByKeys(keys);
+    }
+
+    @Override
+    public void batch(Runnable ops) {
+        mSqliteHelper.runInTransaction(ops);
+    }
+
     @Override
     public void close() {
+        mSweep.cancel(false);
         mSqliteHelper.close();
     }
 
-    public class SQLiteHelper extends SQLiteOpenHelper {
-        public String Lock = "dblock";
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes(StringUtil.CHARSET_NAME_UTF8);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    private static String fromUtf8(byte[] bytes) {
+        try {
+            return new String(bytes, StringUtil.CHARSET_NAME_UTF8);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + 64);
+            byte[] buf = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buf, 0, deflater.deflate(buf));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @return null if the deflated data is broken
+     */
+    private static byte[] inflate(byte[] deflated, int length) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(deflated);
+            byte[] raw = new byte[length];
+            int off = 0;
+            while (off < length && !inflater.finished()) {
+                int n = inflater.inflate(raw, off, length - off);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                off += n;
+            }
+            return (off == length) ? raw : null;
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /** get statements kept idle at most, more concurrent readers compile their own */
+    private static final int MAX_IDLE_GET_STATEMENTS = 4;
+
+    private static class GetStatement {
+        SQLiteStatement statement;
+        int generation;
+    }
+
+    /** db name -> its connection, shared by the SimpleCaches of the file */
+    private static final HashMap<String, SharedDatabase> sDatabases = new HashMap<String, SharedDatabase>();
+
+    /**
+     * The connection and the write lock of a db file.
+     * The connection is closed when the last SQLiteHelper using it is closed.
+     */
+    private static class SharedDatabase extends SQLiteOpenHelper {
+        /** serializes the writes to the file, the reads go on concurrently */
+        final Object mWriteLock = new Object();
+        private SQLiteDatabase mDb;
+        private int mUsers = 0;
+
+        private SharedDatabase(Context context, String name, CursorFactory factory, int version) {
+            super(context, name, factory, version);
+        }
+
+        static SharedDatabase of(Context context, String name, CursorFactory factory, int version) {
+            synchronized (sDatabases) {
+                SharedDatabase db = sDatabases.get(name);
+                if (db == null) {
+                    Context appContext = context.getApplicationContext();
+                    db = new SharedDatabase(appContext != null ? appContext : context,
+                            name, factory, version);
+                    sDatabases.put(name, db);
+                }
+                return db;
+            }
+        }
+
+        synchronized void acquire() {
+            mUsers++;
+        }
+
+        /**
+         * Close the connection if no one uses it
+         */
+        synchronized void release() {
+            if (--mUsers == 0) {
+                mDb = null;
+                close();
+            }
+        }
+
+        /**
+         * @return the open connection, opened again if closed
+         */
+        synchronized SQLiteDatabase getDatabase() {
+            if (mDb == null || !mDb.isOpen()) {
+                SQLiteDatabase db = getWritableDatabase();
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                    db.enableWriteAheadLogging();
+                }
+                mDb = db;
+            }
+            return mDb;
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            // the tables are created by the SQLiteHelpers
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        }
+    }
+
+    public class SQLiteHelper {
         private String mTableName;
+        /** chunks of the large blobs, deleted along with their rows by trigger */
+        private String mChunkTableName;
+        private final SharedDatabase mShared;
+        /** mDb is in use of mShared */
+        private boolean mAcquired = false;
+        private SQLiteDatabase mDb;
+        /** the write lock of the db file, the reads go on concurrently */
+        private final Object mWriteLock;
+        private SQLiteStatement mInsertStatement;
+        private SQLiteStatement mDeleteStatement;
+        private SQLiteStatement mDeleteExpiredStatement;
+        private SQLiteStatement mInsertChunkStatement;
+        private SQLiteStatement mDeleteChunksStatement;
+        /** the idle get statements, the bindings are not thread safe so one user at a time */
+        private final ArrayList<GetStatement> mIdleGetStatements = new ArrayList<GetStatement>();
+        /** increased on close, the get statements of older generations are closed on release */
+        private int mGeneration = 0;
+
         /**
          * @param context
          * @param name
@@ -112,66 +406,296 @@ public class SimpleCacheSqliteImpl implements SimpleCache {
          */
         public SQLiteHelper(Context context, String name,
                             CursorFactory factory, int version, String tbName){
-            super(context, name, factory, version);
+            mShared = SharedDatabase.of(context, name, factory, version);
+            mWriteLock = mShared.mWriteLock;
             mTableName = tbName;
+            mChunkTableName = tbName + "_chunks";
 
             try{
-                SQLiteDatabase sqLiteDatabase = getWritableDatabase();
-                onCreate(getWritableDatabase());
-                sqLiteDatabase.close();
+                getDatabase();
             } catch (Exception e) {e.printStackTrace();}
         }
 
+        /**
+         * @return the shared connection, the statements are compiled again if it is reopened
+         */
+        private synchronized SQLiteDatabase getDatabase() {
+            if (!mAcquired) {
+                mShared.acquire();
+                mAcquired = true;
+            }
+            SQLiteDatabase db = mShared.getDatabase();
+            if (db != mDb) {
+                closeStatements();
+                // the tables of other tags maybe in the same db
+                onCreate(db);
+                // a plain insert, as upsert() deletes the old row and its chunks before
+                mInsertStatement = db.compileStatement("insert into `" + mTableName
+                        + "` (`key`, `value`, `cacheTime`) values (?, ?, ?)");
+                mDeleteStatement = db.compileStatement("delete from `" + mTableName + "` where `key`=?");
+                mDeleteExpiredStatement = db.compileStatement("delete from `" + mTableName
+                        + "` where rowid in (select rowid from `" + mTableName
+                        + "` where `cacheTime` < ? limit ?)");
+                mInsertChunkStatement = db.compileStatement("insert into `" + mChunkTableName
+                        + "` (`key`, `seq`, `data`) values (?, ?, ?)");
+                mDeleteChunksStatement = db.compileStatement("delete from `" + mChunkTableName
+                        + "` where `key`=?");
+                mDb = db;
+            }
+            return mDb;
+        }
+
+        private synchronized GetStatement acquireGetStatement() {
+            int idle = mIdleGetStatements.size();
+            if (idle > 0) return mIdleGetStatements.remove(idle - 1);
+
+            SQLiteDatabase db = getDatabase();
+            GetStatement gs = new GetStatement();
+            // one column for simpleQueryForString(): cacheTime, a space, then 't' and
+            // the text value, or 'b' for a blob which is read by queryBlob()
+            gs.statement = db.compileStatement("select `cacheTime` || ' ' || "
+                    + "case typeof(`value`) when 'blob' then 'b' else 't' || `value` end from `"
+                    + mTableName + "` where `key`=? and `cacheTime` >= ?");
+            gs.generation = mGeneration;
+            return gs;
+        }
+
+        private synchronized void releaseGetStatement(GetStatement gs) {
+            gs.statement.clearBindings();
+            if (gs.generation == mGeneration && mIdleGetStatements.size() < MAX_IDLE_GET_STATEMENTS) {
+                mIdleGetStatements.add(gs);
+            } else {
+                gs.statement.close();
+            }
+        }
+
         /**
          * @param key
          * @param value
+         * @return the old value, read under the write lock so no other write is between
          */
-        public void updateCOByKey(String key, String value) {
-            synchronized(Lock) {
-                SQLiteDatabase db = null;
-                try {
-                    db = getWritableDatabase();
-                    ContentValues values = new ContentValues();
-                    values.put("value", value);
-                    values.put("cacheTime", System.currentTimeMillis());
-                    db.update(mTableName, values , "key=?", new String[]{key});
-                } finally {
-                    if (db != null) db.close();
-                }
+        public String putCO(String key, String value) {
+            synchronized (mWriteLock) {
+                CacheObject old = getCOByKey(key);
+                upsert(key, value);
+                return (old == null) ? null : old.value;
             }
         }
-        
+
         /**
          * @param key
          * @param value
          */
-        public void insertCOByKey(String key, String value) {
-            synchronized(Lock) {
-                SQLiteDatabase db = null;
+        public void putBytes(String key, byte[] value) {
+            synchronized (mWriteLock) {
+                upsert(key, value);
+            }
+        }
+
+        /**
+         * Put all in one transaction
+         * @param kvs
+         */
+        public void putCOs(final Map<String, String> kvs) {
+            runInTransaction(new Runnable() {
+                @Override
+                public void run() {
+                    for (Map.Entry<String, String> kv : kvs.entrySet()) {
+                        upsert(kv.getKey(), kv.getValue());
+                    }
+                }
+            });
+        }
+
+        /**
+         * @param key
+         * @return the old value, read under the write lock so no other write is between
+         */
+        public String deleteCOByKey(String key) {
+            synchronized (mWriteLock) {
+                CacheObject old = getCOByKey(key);
+                delete(key);
+                return (old == null) ? null : old.value;
+            }
+        }
+
+        /**
+         * Delete all in one transaction
+         * @param keys
+         */
+        public void deleteCOsByKeys(final Collection<String> keys) {
+            runInTransaction(new Runnable() {
+                @Override
+                public void run() {
+                    for (String key : keys) {
+                        delete(key);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Run the operations in one transaction, other writers wait until it ends.
+         * Nested calls join the outer transaction.
+         * @param ops
+         */
+        public void runInTransaction(Runnable ops) {
+            synchronized (mWriteLock) {
+                SQLiteDatabase db = getDatabase();
+                db.beginTransaction();
                 try {
-                    db = getWritableDatabase();
-                    ContentValues values = new ContentValues();
-                    values.put("key", key);
-                    values.put("value", value);
-                    values.put("cacheTime", System.currentTimeMillis());
-                    db.insert(mTableName, null, values);
+                    ops.run();
+                    db.setTransactionSuccessful();
                 } finally {
-                    if (db != null) db.close();
+                    db.endTransaction();
                 }
             }
         }
-        
+
+        private void upsert(String key, String value) {
+            int threshold = mCompressThreshold;
+            if (value != null && threshold >= 0 && value.length() >= threshold) {
+                upsert(key, utf8(value));
+                return;
+            }
+            SQLiteDatabase db;
+            SQLiteStatement insert;
+            synchronized (this) {
+                db = getDatabase();
+                insert = mInsertStatement;
+            }
+            db.beginTransaction();
+            try {
+                deleteRowAndChunks(key);
+                insert.bindString(1, key);
+                if (value == null) {
+                    insert.bindNull(2);
+                } else {
+                    insert.bindString(2, value);
+                }
+                insert.bindLong(3, System.currentTimeMillis());
+                insert.executeInsert();
+                insert.clearBindings();
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+
+        private void upsert(String key, byte[] value) {
+            SQLiteDatabase db;
+            SQLiteStatement insert;
+            SQLiteStatement insertChunk;
+            synchronized (this) {
+                db = getDatabase();
+                insert = mInsertStatement;
+                insertChunk = mInsertChunkStatement;
+            }
+            if (value == null) {
+                upsert(key, (String) null);
+                return;
+            }
+
+            int flags = 0;
+            byte[] payload = value;
+            int threshold = mCompressThreshold;
+            if (threshold >= 0 && value.length >= threshold) {
+                byte[] deflated = deflate(value);
+                if (deflated.length < value.length) {
+                    flags |= FLAG_DEFLATED;
+                    payload = deflated;
+                }
+            }
+
+            db.beginTransaction();
+            try {
+                deleteRowAndChunks(key);
+                ByteBuffer blob;
+                if (payload.length <= CHUNK_SIZE) {
+                    blob = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+                    blob.put((byte) flags).putInt(value.length).put(payload);
+                } else {
+                    CRC32 crc = new CRC32();
+                    crc.update(payload);
+                    blob = ByteBuffer.allocate(CHUNKED_HEADER_SIZE);
+                    blob.put((byte) (flags | FLAG_CHUNKED)).putInt(value.length)
+                            .putInt(payload.length).putInt((int) crc.getValue());
+                    for (int seq = 0, off = 0; off < payload.length; seq++, off += CHUNK_SIZE) {
+                        byte[] chunk = new byte[Math.min(CHUNK_SIZE, payload.length - off)];
+                        System.arraycopy(payload, off, chunk, 0, chunk.length);
+                        insertChunk.bindString(1, key);
+                        insertChunk.bindLong(2, seq);
+                        insertChunk.bindBlob(3, chunk);
+                        insertChunk.executeInsert();
+                        insertChunk.clearBindings();
+                    }
+                }
+                insert.bindString(1, key);
+                insert.bindBlob(2, blob.array());
+                insert.bindLong(3, System.currentTimeMillis());
+                insert.executeInsert();
+                insert.clearBindings();
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+
         /**
-         * @param key
+         * Delete the row and then its chunks explicitly, in the caller's transaction;
+         * the trigger only covers the other deletes
+         */
+        private void deleteRowAndChunks(String key) {
+            delete(key);
+            deleteChunks(key);
+        }
+
+        private void deleteChunks(String key) {
+            SQLiteStatement deleteChunks;
+            synchronized (this) {
+                getDatabase();
+                deleteChunks = mDeleteChunksStatement;
+            }
+            deleteChunks.bindString(1, key);
+            deleteChunks.execute();
+            deleteChunks.clearBindings();
+        }
+
+        private void delete(String key) {
+            SQLiteStatement delete;
+            synchronized (this) {
+                getDatabase();
+                delete = mDeleteStatement;
+            }
+            delete.bindString(1, key);
+            delete.execute();
+            delete.clearBindings();
+        }
+
+        /**
+         * @param expiredBefore
+         * @param limit max count to delete
+         * @return count of the deleted rows
          */
-        public void deleteCOByKey(String key) {
-            synchronized(Lock) {
-                SQLiteDatabase db = null;
+        public int deleteExpiredCOs(long expiredBefore, int limit) {
+            synchronized (mWriteLock) {
+                SQLiteDatabase db;
+                SQLiteStatement deleteExpired;
+                synchronized (this) {
+                    db = getDatabase();
+                    deleteExpired = mDeleteExpiredStatement;
+                }
+                deleteExpired.bindLong(1, expiredBefore);
+                deleteExpired.bindLong(2, limit);
                 try {
-                    db = getWritableDatabase();
-                    db.delete(mTableName, "key=?", new String[]{key});
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                        return deleteExpired.executeUpdateDelete();
+                    }
+                    deleteExpired.execute();
+                    // no connection pool before Honeycomb, so changes() is of the delete
+                    return (int) DatabaseUtils.longForQuery(db, "select changes()", null);
                 } finally {
-                    if (db != null) db.close();
+                    deleteExpired.clearBindings();
                 }
             }
         }
@@ -180,47 +704,46 @@ public class SimpleCacheSqliteImpl implements SimpleCache {
          * Clear all in this table
          */
         public void deleteAllKey() {
-            synchronized(Lock) {
-                SQLiteDatabase db = null;
-                try {
-                    db = getWritableDatabase();
-                    db.delete(mTableName, null, null);
-                } finally {
-                    if (db != null) db.close();
-                }
+            synchronized (mWriteLock) {
+                SQLiteDatabase db = getDatabase();
+                db.execSQL("delete from `" + mChunkTableName + "`");
+                db.execSQL("delete from `" + mTableName + "`");
             }
         }
 
         public ArrayList<CacheObject> getLatestCOs(int num) {
-            synchronized(Lock) {
-                ArrayList<CacheObject> cos = new ArrayList<CacheObject>();
-                Cursor c = null;
-                SQLiteDatabase db = null;
-                try {
-                    db = getReadableDatabase();
-                    c = db.rawQuery("select `key`, `value`, `cacheTime` from `" + mTableName +
-                            "` order by cacheTime desc limit " + num, null);
-                    if (c.moveToFirst()) {
-                        while (!c.isAfterLast()) {
-                            String key = c.getString(0);
-                            String value = c.getString(1);
-                            long cacheTime = c.getLong(2);
-                            CacheObject co = new CacheObject(key, value);
-                            co.cacheTime = cacheTime;
-                            cos.add(co);
-                            c.moveToNext();
+            ArrayList<CacheObject> cos = new ArrayList<CacheObject>();
+            Cursor c = null;
+            try {
+                c = getDatabase().rawQuery("select `key`, `cacheTime`, typeof(`value`), `value` from `"
+                        + mTableName
+                        + "` where `cacheTime` >= " + expiredBefore()
+                        + " order by `cacheTime` desc limit " + num, null);
+                if (c.moveToFirst()) {
+                    while (!c.isAfterLast()) {
+                        String key = c.getString(0);
+                        long cacheTime = c.getLong(1);
+                        String value;
+                        if ("blob".equals(c.getString(2))) {
+                            byte[] bytes = decode(key, c.getBlob(3));
+                            value = (bytes == null) ? null : fromUtf8(bytes);
+                        } else {
+                            value = c.getString(3);
                         }
-                        return cos;
-                    } else {
-                        return null;
+                        CacheObject co = new CacheObject(key, value);
+                        co.cacheTime = cacheTime;
+                        cos.add(co);
+                        c.moveToNext();
                     }
-                } catch (Exception e) {
-                    e.printStackTrace();
                     return cos;
-                } finally {
-                    if (c != null) c.close();
-                    /*if (db != null) db.close();*/
+                } else {
+                    return null;
                 }
+            } catch (Exception e) {
+                e.printStackTrace();
+                return cos;
+            } finally {
+                if (c != null) c.close();
             }
         }
 
@@ -229,43 +752,167 @@ public class SimpleCacheSqliteImpl implements SimpleCache {
          * @return
          */
         public CacheObject getCOByKey(String key) {
-            synchronized(Lock) {
-                Cursor c = null;
-                SQLiteDatabase db = null;
-                try {
-                    db = getReadableDatabase();
-                    c = db.query(
-                            mTableName, new String[]{"value","cacheTime"}, "key=?",
-                            new String[]{key}, null, null, null);
-                    if (c.moveToFirst()) {
-                        String value = c.getString(0);
-                        long cacheTime = c.getLong(1);
-                        CacheObject co = new CacheObject(key, value);
-                        co.cacheTime = cacheTime;
+            String timeAndValue = queryTimeAndValue(key);
+            if (timeAndValue == null) return null;
+            int sep = timeAndValue.indexOf(' ');
+            String value;
+            if (timeAndValue.charAt(sep + 1) == 't') {
+                value = timeAndValue.substring(sep + 2);
+            } else {
+                byte[] bytes = queryBlob(key);
+                if (bytes == null) return null;
+                value = fromUtf8(bytes);
+            }
+            CacheObject co = new CacheObject(key, value);
+            co.cacheTime = Long.parseLong(timeAndValue.substring(0, sep));
+            return co;
+        }
+
+        /**
+         * @param key
+         * @return
+         */
+        public byte[] getBytesByKey(String key) {
+            String timeAndValue = queryTimeAndValue(key);
+            if (timeAndValue == null) return null;
+            int sep = timeAndValue.indexOf(' ');
+            if (timeAndValue.charAt(sep + 1) == 't') {
+                return utf8(timeAndValue.substring(sep + 2));
+            }
+            return queryBlob(key);
+        }
+
+        /**
+         * @return cacheTime, a space, then 't' and the text value or 'b'; null if no such key
+         */
+        private String queryTimeAndValue(String key) {
+            GetStatement gs = acquireGetStatement();
+            try {
+                gs.statement.bindString(1, key);
+                gs.statement.bindLong(2, expiredBefore());
+                return gs.statement.simpleQueryForString();
+            } catch (SQLiteDoneException e) {
+                return null; // no such key
+            } finally {
+                releaseGetStatement(gs);
+            }
+        }
+
+        /**
+         * @return the value as bytes, null if missing or broken
+         */
+        private byte[] queryBlob(String key) {
+            Cursor c = null;
+            try {
+                c = getDatabase().rawQuery("select typeof(`value`), `value` from `" + mTableName
+                        + "` where `key`=? and `cacheTime` >= " + expiredBefore(), new String[] {key});
+                if (!c.moveToFirst()) return null;
+                if ("blob".equals(c.getString(0))) return decode(key, c.getBlob(1));
+                String value = c.getString(1); // replaced by a text meanwhile
+                return (value == null) ? null : utf8(value);
+            } finally {
+                if (c != null) c.close();
+            }
+        }
+
+        /**
+         * @return null if broken, or its chunks are being replaced
+         */
+        private byte[] decode(String key, byte[] blob) {
+            if (blob == null || blob.length < HEADER_SIZE) return null;
+            ByteBuffer header = ByteBuffer.wrap(blob);
+            int flags = header.get();
+            int length = header.getInt();
+            byte[] payload;
+            if ((flags & FLAG_CHUNKED) != 0) {
+                if (blob.length < CHUNKED_HEADER_SIZE) return null;
+                payload = queryChunks(key, header.getInt());
+                if (payload == null) return null;
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != header.getInt()) return null;
+            } else {
+                payload = new byte[blob.length - HEADER_SIZE];
+                header.get(payload);
+            }
+            if ((flags & FLAG_DEFLATED) == 0) return payload;
 
-                        return co;
-                    } else {
-                        return null;
+            byte[] raw = inflate(payload, length);
+            if (raw == null) Log.w(TAG, "broken value of " + key);
+            return raw;
+        }
+
+        private byte[] queryChunks(String key, int size) {
+            Cursor c = null;
+            try {
+                c = getDatabase().rawQuery("select `data` from `" + mChunkTableName
+                        + "` where `key`=? order by `seq`", new String[] {key});
+                byte[] payload = new byte[size];
+                int off = 0;
+                for (boolean more = c.moveToFirst(); more; more = c.moveToNext()) {
+                    byte[] chunk = c.getBlob(0);
+                    if (off + chunk.length > size) return null;
+                    System.arraycopy(chunk, 0, payload, off, chunk.length);
+                    off += chunk.length;
+                }
+                return (off == size) ? payload : null;
+            } finally {
+                if (c != null) c.close();
+            }
+        }
+
+        /**
+         * Waits for the write in progress; the get statements in use are closed on release.
+         * The connection is closed if no other table of the db file is open.
+         */
+        public void close() {
+            synchronized (mWriteLock) {
+                synchronized (this) {
+                    closeStatements();
+                    mDb = null;
+                    if (mAcquired) {
+                        mAcquired = false;
+                        mShared.release();
                     }
-                } finally {
-                    if (c != null) c.close();
-                    /*if (db != null) db.close();*/
                 }
             }
         }
 
-        @Override
+        private void closeStatements() {
+            for (GetStatement gs : mIdleGetStatements) {
+                gs.statement.close();
+            }
+            mIdleGetStatements.clear();
+            mGeneration++;
+            if (mInsertStatement != null) mInsertStatement.close();
+            if (mDeleteStatement != null) mDeleteStatement.close();
+            if (mDeleteExpiredStatement != null) mDeleteExpiredStatement.close();
+            if (mInsertChunkStatement != null) mInsertChunkStatement.close();
+            if (mDeleteChunksStatement != null) mDeleteChunksStatement.close();
+            mInsertStatement = null;
+            mDeleteStatement = null;
+            mDeleteExpiredStatement = null;
+            mInsertChunkStatement = null;
+            mDeleteChunksStatement = null;
+        }
+
         public void onCreate(SQLiteDatabase db) {
             db.execSQL("create table if not exists "+mTableName+"("
                     + "key varchar(128) primary key,"
                     + "value varchar(4096),"
                     + "cacheTime long)");
+            db.execSQL("create index if not exists " + mTableName + "_cacheTime on "
+                    + mTableName + "(cacheTime)");
+            // chunks of the blobs beyond CHUNK_SIZE, see upsert(String, byte[])
+            db.execSQL("create table if not exists " + mChunkTableName + "("
+                    + "key varchar(128),"
+                    + "seq integer,"
+                    + "data blob,"
+                    + "primary key(key, seq))");
+            db.execSQL("create trigger if not exists " + mTableName + "_delete_chunks"
+                    + " after delete on " + mTableName + " begin"
+                    + " delete from " + mChunkTableName + " where key=old.key; end");
         }
-
-        @Override
-        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {            
-        }
-        
     }
   
 }
@@ -0,0 +1,432 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alibaba.akita.cache;
+
+import com.alibaba.akita.exception.AkException;
+import com.alibaba.akita.exception.AkInvokeException;
+import com.alibaba.akita.exception.AkServerStatusException;
+import com.alibaba.akita.io.SingleFlight;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lookup through the tiers in order, such as memory, disk, then the loader (network).
+ * A value found in a tier is promoted into the tiers above it, a loaded value is put
+ * into the tiers filled on load. An entry evicted by a memory tier is demoted into the
+ * next tier if that one is in memory too; the blocking tiers below already hold it.
+ * The tiers whose get() may block are only looked up off the calling thread of getAsync(),
+ * and the concurrent loads of a key are done once.
+ *
+ * @author zhe.yangz
+ */
+public class TieredCache<K, V> {
+    /** default executor of getAsync() */
+    private static final ThreadPoolExecutor sLoader = new ThreadPoolExecutor(
+            3, 3, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "AkTieredCacheLoader");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /**
+     * Result of getAsync(), called on the worker thread
+     */
+    public interface Callback<K, V> {
+        /**
+         * @param value null if not found
+         */
+        public void onLoaded(K key, V value);
+
+        public void onFailed(K key, AkException e);
+    }
+
+    /**
+     * A level of the TieredCache, counting its hits and misses
+     */
+    public static abstract class Tier<K, V> {
+        private final String mName;
+        private final AtomicLong mHitCount = new AtomicLong();
+        private final AtomicLong mMissCount = new AtomicLong();
+        private TieredCache<K, V> mOwner;
+        private int mLevel;
+
+        protected Tier(String name) {
+            mName = name;
+        }
+
+        public abstract V get(K key);
+        public abstract void put(K key, V value);
+        public abstract void remove(K key);
+        public abstract void clear();
+
+        /**
+         * @return true if get() may do I/O
+         */
+        public abstract boolean isBlocking();
+
+        /**
+         * @return false if the loader stores the loaded values in this tier by itself
+         */
+        public boolean isFilledOnLoad() {
+            return true;
+        }
+
+        /**
+         * Move an entry evicted by this tier into the next tier, if that one is in memory
+         */
+        protected void demote(K key, V value) {
+            TieredCache<K, V> owner = mOwner;
+            if (owner == null || mLevel + 1 >= owner.mTiers.length) return;
+            Tier<K, V> next = owner.mTiers[mLevel + 1];
+            if (!next.isBlocking()) next.put(key, value);
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getHitCount() {
+            return mHitCount.get();
+        }
+
+        public long getMissCount() {
+            return mMissCount.get();
+        }
+
+        @Override
+        public String toString() {
+            return mName + " " + mHitCount.get() + "/" + (mHitCount.get() + mMissCount.get());
+        }
+    }
+
+    /**
+     * Memory tier on a MemCache, not blocking
+     */
+    public static class MemCacheTier<K, V> extends Tier<K, V> {
+        private final MemCache<K, V> mMemCache;
+
+        /**
+         * LRU tier bounded by size, its evicted entries are demoted
+         * @param name
+         * @param maxSize max total size, in the unit of weigher
+         * @param weigher null to count 1 per entry
+         */
+        public MemCacheTier(String name, int maxSize, Weigher<K, V> weigher) {
+            super(name);
+            mMemCache = AkCacheManager.newMemLruCache(maxSize, weigher, new EvictionListener<K, V>() {
+                @Override
+                public void onEvicted(K key, V value) {
+                    demote(key, value);
+                }
+            });
+        }
+
+        /**
+         * @param name
+         * @param memCache such as AkCacheManager.newMemSoftRefCache()
+         */
+        public MemCacheTier(String name, MemCache<K, V> memCache) {
+            super(name);
+            mMemCache = memCache;
+        }
+
+        @Override
+        public V get(K key) {
+            return mMemCache.get(key);
+        }
+
+        @Override
+        public void put(K key, V value) {
+            mMemCache.put(key, value);
+        }
+
+        @Override
+        public void remove(K key) {
+            mMemCache.remove(key);
+        }
+
+        @Override
+        public void clear() {
+            mMemCache.clear();
+        }
+
+        @Override
+        public boolean isBlocking() {
+            return false;
+        }
+    }
+
+    /**
+     * Disk tier on a FilesCache, blocking
+     */
+    public static class FilesCacheTier<V> extends Tier<String, V> {
+        private final FilesCache<V> mFilesCache;
+        private final boolean mFilledOnLoad;
+
+        /**
+         * @param name
+         * @param filesCache
+         * @param filledOnLoad false if the loader saves into filesCache itself,
+         *                     such as by FilesCacheSDFoldersImpl.newRawSink()
+         */
+        public FilesCacheTier(String name, FilesCache<V> filesCache, boolean filledOnLoad) {
+            super(name);
+            mFilesCache = filesCache;
+            mFilledOnLoad = filledOnLoad;
+        }
+
+        public FilesCache<V> getFilesCache() {
+            return mFilesCache;
+        }
+
+        @Override
+        public V get(String key) {
+            if (mFilesCache instanceof FilesCacheSDFoldersImpl) {
+                // the memory tiers are above, not its own
+                return ((FilesCacheSDFoldersImpl<V>) mFilesCache).getFromDisk(key);
+            }
+            return mFilesCache.get(key);
+        }
+
+        @Override
+        public void put(String key, V value) {
+            mFilesCache.put(key, value);
+        }
+
+        @Override
+        public void remove(String key) {
+            mFilesCache.remove(key);
+        }
+
+        @Override
+        public void clear() {
+            mFilesCache.clearCache();
+        }
+
+        @Override
+        public boolean isBlocking() {
+            return true;
+        }
+
+        @Override
+        public boolean isFilledOnLoad() {
+            return mFilledOnLoad;
+        }
+    }
+
+    private final Tier<K, V>[] mTiers;
+    /** index of the first blocking tier */
+    private final int mFirstBlocking;
+    private final SingleFlight<K, V> mLoads = new SingleFlight<K, V>();
+    private final AtomicLong mLoadCount = new AtomicLong();
+
+    /**
+     * @param tiers from the fastest, each tier belongs to one TieredCache only
+     */
+    public TieredCache(List<? extends Tier<K, V>> tiers) {
+        mTiers = newTierArray(tiers.size());
+        tiers.toArray(mTiers);
+        int firstBlocking = mTiers.length;
+        for (int i = 0; i < mTiers.length; i++) {
+            if (mTiers[i].mOwner != null) {
+                throw new IllegalArgumentException("tier " + mTiers[i].mName + " is in use");
+            }
+            mTiers[i].mOwner = this;
+            mTiers[i].mLevel = i;
+            if (mTiers[i].isBlocking() && firstBlocking == mTiers.length) firstBlocking = i;
+        }
+        mFirstBlocking = firstBlocking;
+    }
+
+    /**
+     * Look up the tiers not blocking only, safe on the UI thread
+     * @param key
+     * @return null if not found in them
+     */
+    public V getIfPresent(K key) {
+        return lookup(key, 0, mFirstBlocking);
+    }
+
+    /**
+     * Look up all the tiers, then load by loader if not found
+     * @param key
+     * @param loader maybe null to look up the tiers only
+     * @return null if not found
+     */
+    public V get(K key, SingleFlight.Loader<V> loader)
+            throws AkServerStatusException, AkInvokeException {
+        V value = lookup(key, 0, mTiers.length);
+        if (value != null || loader == null) return value;
+        return load(key, loader);
+    }
+
+    /**
+     * getAsync() on the default executor
+     */
+    public V getAsync(K key, SingleFlight.Loader<V> loader, Callback<K, V> callback) {
+        return getAsync(key, loader, callback, sLoader);
+    }
+
+    /**
+     * Look up the tiers not blocking on this thread; if not found, look up the others
+     * and load on executor, and report to callback there
+     * @param key
+     * @param loader maybe null to look up the tiers only
+     * @param callback not called if found at once
+     * @param executor
+     * @return the value if found in the tiers not blocking, otherwise null
+     */
+    public V getAsync(final K key, final SingleFlight.Loader<V> loader,
+                      final Callback<K, V> callback, Executor executor) {
+        V value = getIfPresent(key);
+        if (value != null) return value;
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                V value;
+                try {
+                    value = lookup(key, mFirstBlocking, mTiers.length);
+                    if (value == null && loader != null) {
+                        value = load(key, loader);
+                    }
+                } catch (AkException e) {
+                    callback.onFailed(key, e);
+                    return;
+                } catch (RuntimeException e) {
+                    // such as a broken file failed to decode, the caller still hears of it
+                    callback.onFailed(key, new AkInvokeException(
+                            AkInvokeException.CODE_UNKOWN_ERROR, e.toString(), e));
+                    return;
+                }
+                callback.onLoaded(key, value);
+            }
+        });
+        return null;
+    }
+
+    /**
+     * Put into all the tiers
+     */
+    public void put(K key, V value) {
+        if (value == null) return;
+        for (Tier<K, V> tier : mTiers) {
+            tier.put(key, value);
+        }
+    }
+
+    /**
+     * Remove from all the tiers
+     */
+    public void remove(K key) {
+        for (Tier<K, V> tier : mTiers) {
+            tier.remove(key);
+        }
+    }
+
+    /**
+     * Clear all the tiers, the blocking tiers maybe slow to clear
+     */
+    public void clear() {
+        for (Tier<K, V> tier : mTiers) {
+            tier.clear();
+        }
+    }
+
+    /**
+     * Clear the tiers not blocking, such as on low memory
+     */
+    public void clearMemoryTiers() {
+        for (int i = 0; i < mFirstBlocking; i++) {
+            mTiers[i].clear();
+        }
+    }
+
+    /**
+     * @return the tiers from the fastest, for their hit and miss counts
+     */
+    public List<Tier<K, V>> getTiers() {
+        return new ArrayList<Tier<K, V>>(Arrays.asList(mTiers));
+    }
+
+    /**
+     * @return count of the values loaded by the loaders, the coalesced loads counted once
+     */
+    public long getLoadCount() {
+        return mLoadCount.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("TieredCache hits ");
+        for (Tier<K, V> tier : mTiers) {
+            sb.append(tier).append(", ");
+        }
+        return sb.append("loads ").append(mLoadCount.get()).toString();
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <K, V> Tier<K, V>[] newTierArray(int size) {
+        return new Tier[size];
+    }
+
+    /**
+     * Look up the tiers in [from, to), and promote the value found into the tiers above
+     */
+    private V lookup(K key, int from, int to) {
+        for (int i = from; i < to; i++) {
+            Tier<K, V> tier = mTiers[i];
+            V value = tier.get(key);
+            if (value == null) {
+                tier.mMissCount.incrementAndGet();
+                continue;
+            }
+            tier.mHitCount.incrementAndGet();
+            for (int j = 0; j < i; j++) {
+                mTiers[j].put(key, value);
+            }
+            return value;
+        }
+        return null;
+    }
+
+    private V load(final K key, final SingleFlight.Loader<V> loader)
+            throws AkServerStatusException, AkInvokeException {
+        return mLoads.execute(key, new SingleFlight.Loader<V>() {
+            @Override
+            public V load() throws AkException {
+                V value = loader.load();
+                if (value == null) return null;
+                mLoadCount.incrementAndGet();
+                for (Tier<K, V> tier : mTiers) {
+                    if (tier.isFilledOnLoad()) tier.put(key, value);
+                }
+                return value;
+            }
+        });
+    }
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alibaba.akita.cache;
+
+/**
+ * Size of a cached value, counted against the max size of a sized MemCache
+ * @author zhe.yangz
+ */
+public interface Weigher<K, V> {
+    /**
+     * @return size of the entry, such as bytes of a bitmap, must not change while cached
+     */
+    public int sizeOf(K key, V value);
+}
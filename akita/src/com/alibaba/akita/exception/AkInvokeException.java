@@ -27,6 +27,9 @@ public class AkInvokeException extends AkException {
     public static final int CODE_TARGET_HOST_OR_URL_ERROR = 1009;
     public static final int CODE_REQUEST_FIELD_EXCEPTION = 1010;
     public static final int CODE_POST_PARAM_NULL_ERROR = 1011;
+    public static final int CODE_CANCELLED = 1012;
+    public static final int CODE_REJECTED = 1013;
+    public static final int CODE_CIRCUIT_OPEN = 1014;
 
     public static final int CODE_UNKOWN_ERROR = 1099;
 
@@ -0,0 +1,42 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alibaba.akita.io;
+
+import java.io.OutputStream;
+
+/**
+ * Receives the raw response body while it is downloaded, such as to save it as a cache file.
+ * Each download attempt begins a new stream, which is either committed or aborted.
+ *
+ * @author zhe.yangz
+ */
+public interface BodySink {
+
+    /**
+     * @return stream to write the body of an attempt to, which should not throw;
+     * null if the body is not wanted
+     */
+    public OutputStream begin();
+
+    /**
+     * The body written to out is complete and valid
+     */
+    public void commit(OutputStream out);
+
+    /**
+     * Drop the body written to out, such as the attempt failed
+     */
+    public void abort(OutputStream out);
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alibaba.akita.io;
+
+import java.util.HashMap;
+
+/**
+ * Per host circuit breaker.
+ * After failureThreshold consecutive failures to a host, its requests fail fast
+ * for openMillis; then one probe request is let through, the circuit is closed
+ * if it succeeds, or opened again.
+ *
+ * @author zhe.yangz
+ */
+public class CircuitBreaker {
+    public static final int STATE_CLOSED = 0;
+    public static final int STATE_OPEN = 1;
+    public static final int STATE_HALF_OPEN = 2;
+
+    private final int mFailureThreshold;
+    private final long mOpenMillis;
+    private final HashMap<String, Circuit> mCircuits = new HashMap<String, Circuit>();
+
+    private static class Circuit {
+        int state = STATE_CLOSED;
+        int failures;
+        long openedAt;
+    }
+
+    /**
+     * @param failureThreshold consecutive failures opening the circuit
+     * @param openMillis millis failing fast before the probe
+     */
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        mFailureThreshold = Math.max(failureThreshold, 1);
+        mOpenMillis = openMillis;
+    }
+
+    /**
+     * @param host
+     * @return true if a request to host may go, false to fail fast
+     */
+    public synchronized boolean allowRequest(String host) {
+        Circuit c = mCircuits.get(host);
+        if (c == null || c.state == STATE_CLOSED) return true;
+        long now = System.currentTimeMillis();
+        if (now - c.openedAt >= mOpenMillis) {
+            // let this one probe, another one later if this one never reports
+            c.state = STATE_HALF_OPEN;
+            c.openedAt = now;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized void onSuccess(String host) {
+        mCircuits.remove(host);
+    }
+
+    public synchronized void onFailure(String host) {
+        Circuit c = mCircuits.get(host);
+        if (c == null) {
+            c = new Circuit();
+            mCircuits.put(host, c);
+        }
+        c.failures++;
+        if (c.state == STATE_HALF_OPEN || c.failures >= mFailureThreshold) {
+            c.state = STATE_OPEN;
+            c.openedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @param host
+     * @return STATE_CLOSED, STATE_OPEN or STATE_HALF_OPEN
+     */
+    public synchronized int getState(String host) {
+        Circuit c = mCircuits.get(host);
+        return (c == null) ? STATE_CLOSED : c.state;
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alibaba.akita.io;
+
+import com.alibaba.akita.util.HashUtil;
+import com.alibaba.akita.util.Log;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Disk cache of GET responses following ETag, Last-Modified and Cache-Control.
+ * Fresh responses (max-age) are served without network, the others are revalidated
+ * with If-None-Match / If-Modified-Since and served locally on 304.
+ * Bounded in size, the least recently used responses are evicted.
+ * Cached by url only, so the requests carrying credentials and the responses
+ * varying on request headers are not cached.
+ *
+ * @author zhe.yangz
+ */
+public class HttpCache {
+    private static final String TAG = "HttpCache";
+    private static final String FILE_SUFFIX = ".http";
+
+    private final File mDir;
+    private final long mMaxSize;
+    /** hashed url -> file size, in access order */
+    private final LinkedHashMap<String, Long> mIndex =
+            new LinkedHashMap<String, Long>(64, 0.75f, true);
+    private long mSize = 0;
+
+    /**
+     * A cached response
+     */
+    static class Entry {
+        String url;
+        String etag;
+        String lastModified;
+        String contentType;
+        /** 0 if it always needs revalidation */
+        long expiresAt;
+        byte[] body;
+
+        boolean isFresh() {
+            return System.currentTimeMillis() < expiresAt;
+        }
+
+        HttpResponse toResponse() {
+            HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+            ByteArrayEntity entity = new ByteArrayEntity(body);
+            if (contentType != null) entity.setContentType(contentType);
+            response.setEntity(entity);
+            return response;
+        }
+    }
+
+    /**
+     * @param dir directory only used by this cache
+     * @param maxSize max size in bytes
+     */
+    public HttpCache(File dir, long maxSize) {
+        mDir = dir;
+        mMaxSize = maxSize;
+        mDir.mkdirs();
+
+        // rebuild the index, oldest accessed first
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File f1, File f2) {
+                    long diff = f1.lastModified() - f2.lastModified();
+                    return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+                }
+            });
+            for (File f : files) {
+                String name = f.getName();
+                if (name.endsWith(FILE_SUFFIX)) {
+                    long len = f.length();
+                    mIndex.put(name.substring(0, name.length() - FILE_SUFFIX.length()), len);
+                    mSize += len;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return false if the response to the request must neither be served from
+     * nor stored in the cache, as it depends on the credentials of the request
+     */
+    static boolean isCacheable(HttpRequest request) {
+        return !request.containsHeader("Authorization") && !request.containsHeader("Cookie");
+    }
+
+    /**
+     * @param url
+     * @return null if not cached
+     */
+    synchronized Entry get(String url) {
+        String hashedKey = HashUtil.md5(url);
+        if (mIndex.get(hashedKey) == null) return null;
+
+        File f = getFile(hashedKey);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            Entry entry = new Entry();
+            entry.url = in.readUTF();
+            if (!url.equals(entry.url)) return null;
+            entry.etag = emptyToNull(in.readUTF());
+            entry.lastModified = emptyToNull(in.readUTF());
+            entry.contentType = emptyToNull(in.readUTF());
+            entry.expiresAt = in.readLong();
+            entry.body = new byte[in.readInt()];
+            in.readFully(entry.body);
+            f.setLastModified(System.currentTimeMillis());
+            return entry;
+        } catch (IOException e) {
+            Log.w(TAG, "drop broken cache of " + url, e);
+            remove(hashedKey);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    synchronized void put(Entry entry) {
+        String hashedKey = HashUtil.md5(entry.url);
+        remove(hashedKey);
+
+        File f = getFile(hashedKey);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+            out.writeUTF(entry.url);
+            out.writeUTF(nullToEmpty(entry.etag));
+            out.writeUTF(nullToEmpty(entry.lastModified));
+            out.writeUTF(nullToEmpty(entry.contentType));
+            out.writeLong(entry.expiresAt);
+            out.writeInt(entry.body.length);
+            out.write(entry.body);
+        } catch (IOException e) {
+            Log.w(TAG, "failed to cache " + entry.url, e);
+            closeQuietly(out);
+            out = null;
+            f.delete();
+            return;
+        } finally {
+            closeQuietly(out);
+        }
+
+        long len = f.length();
+        mIndex.put(hashedKey, len);
+        mSize += len;
+        trimToSize();
+    }
+
+    /**
+     * Clear all cached responses
+     */
+    public synchronized void clear() {
+        for (String hashedKey : mIndex.keySet()) {
+            getFile(hashedKey).delete();
+        }
+        mIndex.clear();
+        mSize = 0;
+    }
+
+    /**
+     * @return current size in bytes
+     */
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    private void remove(String hashedKey) {
+        Long len = mIndex.remove(hashedKey);
+        if (len != null) {
+            mSize -= len;
+            getFile(hashedKey).delete();
+        }
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Long>> iter = mIndex.entrySet().iterator();
+        while (mSize > mMaxSize && iter.hasNext()) {
+            Map.Entry<String, Long> eldest = iter.next();
+            iter.remove();
+            mSize -= eldest.getValue();
+            getFile(eldest.getKey()).delete();
+        }
+    }
+
+    private File getFile(String hashedKey) {
+        return new File(mDir, hashedKey + FILE_SUFFIX);
+    }
+
+    /**
+     * Read the response's entity to cache if the response is cacheable.
+     * @param url requested url
+     * @param response 200 response
+     * @return response to use instead, whose entity is repeatable; or the same response
+     */
+    HttpResponse store(String url, HttpResponse response) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity == null) return response;
+        Entry entry = newEntry(url, response, null);
+        if (entry == null) return response;
+
+        entry.body = EntityUtils.toByteArray(entity);
+        Header contentType = entity.getContentType();
+        entry.contentType = (contentType == null) ? null : contentType.getValue();
+        put(entry);
+        return entry.toResponse();
+    }
+
+    /**
+     * Update the validators and freshness of the cached entry from a 304 response
+     * @return the cached response
+     */
+    HttpResponse revalidated(Entry cached, HttpResponse notModified) {
+        Entry entry = newEntry(cached.url, notModified, cached);
+        if (entry != null) {
+            entry.body = cached.body;
+            entry.contentType = cached.contentType;
+            put(entry);
+        }
+        return cached.toResponse();
+    }
+
+    /**
+     * @return null if the response must not be cached
+     */
+    private static Entry newEntry(String url, HttpResponse response, Entry cached) {
+        if (response.containsHeader("Vary")) {
+            return null; // the key doesn't include the request headers
+        }
+        Entry entry = new Entry();
+        entry.url = url;
+        entry.etag = headerValue(response, "ETag", cached == null ? null : cached.etag);
+        entry.lastModified = headerValue(response, "Last-Modified",
+                cached == null ? null : cached.lastModified);
+
+        long maxAge = 0;
+        for (Header h : response.getHeaders("Cache-Control")) {
+            for (HeaderElement he : h.getElements()) {
+                String name = he.getName();
+                if ("no-store".equalsIgnoreCase(name)) {
+                    return null;
+                } else if ("no-cache".equalsIgnoreCase(name)) {
+                    maxAge = -1;
+                } else if ("max-age".equalsIgnoreCase(name) && maxAge >= 0) {
+                    try {
+                        maxAge = Long.parseLong(he.getValue());
+                    } catch (NumberFormatException ignore) { }
+                }
+            }
+        }
+        entry.expiresAt = (maxAge > 0) ? System.currentTimeMillis() + maxAge * 1000L : 0;
+
+        if (entry.expiresAt == 0 && entry.etag == null && entry.lastModified == null) {
+            return null; // nothing to revalidate with
+        }
+        return entry;
+    }
+
+    private static String headerValue(HttpResponse response, String name, String defaultValue) {
+        Header h = response.getFirstHeader(name);
+        return (h == null) ? defaultValue : h.getValue();
+    }
+
+    private static String emptyToNull(String s) {
+        return (s == null || s.length() == 0) ? null : s;
+    }
+
+    private static String nullToEmpty(String s) {
+        return (s == null) ? "" : s;
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException ignore) { }
+        }
+    }
+}
@@ -7,24 +7,32 @@
  */
 package com.alibaba.akita.io;
 
+import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.os.SystemClock;
 import android.widget.ProgressBar;
+import com.alibaba.akita.exception.AkException;
 import com.alibaba.akita.exception.AkInvokeException;
 import com.alibaba.akita.exception.AkServerStatusException;
 import com.alibaba.akita.util.ImageUtil;
+import com.alibaba.akita.util.JsonMapper;
 import com.alibaba.akita.util.Log;
 import org.apache.http.*;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.AbortableHttpRequest;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.message.BasicHeaderElementIterator;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
@@ -32,13 +40,20 @@ import org.apache.http.params.HttpProtocolParams;
 import org.apache.http.protocol.HTTP;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
+import org.codehaus.jackson.JsonProcessingException;
 
 import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -54,17 +69,49 @@ public class HttpInvoker {
     private static String TAG = "HttpInvoker";
     private static String CHARSET = HTTP.UTF_8;
     
-    private static ThreadSafeClientConnManager connectionManager;
-    private static DefaultHttpClient client;
+    private static final int DEFAULT_MAX_PER_ROUTE = 8;
+    private static final int DEFAULT_MAX_TOTAL = 32;
+    private static final long DEFAULT_KEEP_ALIVE_MILLIS = 30 * 1000;
+    private static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60 * 1000;
+    private static final long REAP_INTERVAL_MILLIS = 15 * 1000;
+
+    private static volatile MeteredConnManager connectionManager;
+    private static volatile DefaultHttpClient client;
+    /** live limits of connections per route, read by the pool on each lease */
+    private static final ConnPerRouteBean sConnPerRoute = new ConnPerRouteBean(DEFAULT_MAX_PER_ROUTE);
+    private static int sMaxTotal = DEFAULT_MAX_TOTAL;
+    private static volatile long sKeepAliveMillis = DEFAULT_KEEP_ALIVE_MILLIS;
+    private static volatile long sIdleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+    /** replaced managers, shut down once their leased connections are released */
+    private static final ArrayList<MeteredConnManager> sRetiredManagers =
+            new ArrayList<MeteredConnManager>();
+    private static volatile HttpCache sHttpCache;
+    private static final ThreadLocal<RequestHandle> sRequestHandle = new ThreadLocal<RequestHandle>();
+    private static volatile RetryPolicy sRetryPolicy = new RetryPolicy(3, 500, 8000);
+    private static volatile CircuitBreaker sCircuitBreaker = new CircuitBreaker(5, 30 * 1000);
     
     static {
         init();
+        ScheduledThreadPoolExecutor reaper = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "AkHttpConnReaper");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        reaper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                reapConnections();
+            }
+        }, REAP_INTERVAL_MILLIS, REAP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
     }
     
     /**
      * init
      */
-    private static void init() {
+    private static synchronized void init() {
         
         SchemeRegistry schemeRegistry = new SchemeRegistry();
         schemeRegistry.register(
@@ -78,9 +125,29 @@ public class HttpInvoker {
         HttpConnectionParams.setConnectionTimeout(params, 8000);
         HttpConnectionParams.setSoTimeout(params, 15000);
         params.setBooleanParameter("http.protocol.expect-continue", false);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, sConnPerRoute);
+        ConnManagerParams.setMaxTotalConnections(params, sMaxTotal);
 
-        connectionManager = new ThreadSafeClientConnManager(params, schemeRegistry);
-        client = new DefaultHttpClient(connectionManager, params);
+        MeteredConnManager manager = new MeteredConnManager(params, schemeRegistry);
+        DefaultHttpClient client = new DefaultHttpClient(manager, params);
+
+        // keep alive as the server says, but no longer than sKeepAliveMillis
+        client.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long keepAlive = sKeepAliveMillis;
+                HeaderElementIterator it = new BasicHeaderElementIterator(
+                        response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+                while (it.hasNext()) {
+                    HeaderElement he = it.nextElement();
+                    if ("timeout".equalsIgnoreCase(he.getName()) && he.getValue() != null) {
+                        try {
+                            keepAlive = Math.min(keepAlive, Long.parseLong(he.getValue()) * 1000);
+                        } catch (NumberFormatException ignore) { }
+                    }
+                }
+                return keepAlive;
+            }
+        });
         
         // enable gzip support in Request and Response. 
         client.addRequestInterceptor(new HttpRequestInterceptor() {
@@ -97,28 +164,286 @@ public class HttpInvoker {
                     final HttpResponse response,
                     final HttpContext context) throws HttpException, IOException {
                 HttpEntity entity = response.getEntity();
+                if (entity == null) return; // such as 304
                 //Log.i("ContentLength", entity.getContentLength()+"");
                 Header ceheader = entity.getContentEncoding();
                 if (ceheader != null) {
                     HeaderElement[] codecs = ceheader.getElements();
                     for (int i = 0; i < codecs.length; i++) {
                         if (codecs[i].getName().equalsIgnoreCase("gzip")) {
-                            response.setEntity(
-                                    new GzipDecompressingEntity(response.getEntity()));
+                            if (RequestTimer.current() != null) {
+                                RequestTimer.markGzipped();
+                                entity = new TimedEntity(entity, RequestTimer.PHASE_DOWNLOAD);
+                            }
+                            response.setEntity(new GzipDecompressingEntity(entity));
                             return;
                         }
                     }
                 }
             }
         });
-        
+
+        if (connectionManager != null) {
+            synchronized (sRetiredManagers) {
+                sRetiredManagers.add(connectionManager);
+            }
+        }
+        connectionManager = manager;
+        HttpInvoker.client = client;
+    }
+
+    /**
+     * Set the limits of the connection pool, default 8 per route and 32 in total.
+     * @param maxPerRoute max connections to one host
+     * @param maxTotal max connections to all hosts
+     */
+    public static synchronized void configurePool(int maxPerRoute, int maxTotal) {
+        sConnPerRoute.setDefaultMaxPerRoute(maxPerRoute);
+        if (maxTotal != sMaxTotal) {
+            // the total limit is fixed once the pool is created
+            sMaxTotal = maxTotal;
+            init();
+        }
+    }
+
+    /**
+     * Set the max connections to one host, overriding the default max per route.
+     * @param host such as new HttpHost("img.example.com", 80, "http")
+     * @param max max connections
+     */
+    public static synchronized void setMaxConnectionsForHost(HttpHost host, int max) {
+        boolean secure = "https".equalsIgnoreCase(host.getSchemeName());
+        sConnPerRoute.setMaxForRoute(new HttpRoute(host, null, secure), max);
+    }
+
+    /**
+     * @param keepAliveMillis max millis an idle connection is kept alive for reuse,
+     *                        shorter if the server's Keep-Alive header says so
+     * @param idleTimeoutMillis idle connections are closed after this by the reaper
+     */
+    public static void setKeepAlive(long keepAliveMillis, long idleTimeoutMillis) {
+        sKeepAliveMillis = keepAliveMillis;
+        sIdleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * @return live stats of the connection pool
+     */
+    public static synchronized HttpPoolStats getPoolStats() {
+        return connectionManager.getStats(sConnPerRoute.getDefaultMax(), sMaxTotal);
+    }
+
+    private static void reapConnections() {
+        MeteredConnManager manager = connectionManager;
+        manager.closeExpiredConnections();
+        manager.closeIdleConnections(sIdleTimeoutMillis, TimeUnit.MILLISECONDS);
+        synchronized (sRetiredManagers) {
+            Iterator<MeteredConnManager> iter = sRetiredManagers.iterator();
+            while (iter.hasNext()) {
+                MeteredConnManager retired = iter.next();
+                if (retired.getLeased() <= 0) {
+                    retired.shutdown();
+                    iter.remove();
+                } else {
+                    retired.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    /**
+     * Bind the handle to current thread, the requests executed later on this thread
+     * can be aborted by the handle.
+     * @param handle null to unbind
+     */
+    public static void setRequestHandle(RequestHandle handle) {
+        if (handle == null) {
+            sRequestHandle.remove();
+        } else {
+            sRequestHandle.set(handle);
+        }
+    }
+
+    /**
+     * @param retryPolicy policy retrying GET and @AkIdempotent POST, RetryPolicy.NONE for no retry
+     */
+    public static void setRetryPolicy(RetryPolicy retryPolicy) {
+        sRetryPolicy = (retryPolicy == null) ? RetryPolicy.NONE : retryPolicy;
+    }
+
+    public static RetryPolicy getRetryPolicy() {
+        return sRetryPolicy;
+    }
+
+    /**
+     * @param circuitBreaker per host circuit breaker, null to disable
+     */
+    public static void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        sCircuitBreaker = circuitBreaker;
+    }
+
+    public static CircuitBreaker getCircuitBreaker() {
+        return sCircuitBreaker;
+    }
+
+    /**
+     * Thrown instead of sending the request while the host's circuit is open
+     */
+    private static class CircuitOpenException extends IOException {
+        private static final long serialVersionUID = -2390154276837102957L;
+
+        CircuitOpenException(String host) {
+            super("Circuit open of " + host);
+        }
+    }
+
+    private static HttpResponse execute(HttpUriRequest request) throws IOException {
+        RequestHandle handle = sRequestHandle.get();
+        if (handle != null && request instanceof AbortableHttpRequest) {
+            handle.attach((AbortableHttpRequest) request);
+        }
+
+        CircuitBreaker breaker = sCircuitBreaker;
+        String host = request.getURI().getHost();
+        if (breaker == null || host == null) {
+            return timedExecute(request);
+        }
+        if (!breaker.allowRequest(host)) {
+            throw new CircuitOpenException(host);
+        }
+        HttpResponse response;
+        try {
+            response = timedExecute(request);
+        } catch (IOException e) {
+            if (handle == null || !handle.isAborted()) breaker.onFailure(host);
+            throw e;
+        }
+        if (response.getStatusLine().getStatusCode() >= 500) {
+            breaker.onFailure(host);
+        } else {
+            breaker.onSuccess(host);
+        }
+        return response;
+    }
+
+    /**
+     * Execute, and add the time to first byte and of reading the body
+     * to the thread's RequestTimer if any
+     */
+    private static HttpResponse timedExecute(HttpUriRequest request) throws IOException {
+        if (RequestTimer.current() == null) {
+            return client.execute(request);
+        }
+        long acquired = RequestTimer.get(RequestTimer.PHASE_CONNECTION_ACQUIRE);
+        long start = System.nanoTime();
+        HttpResponse response = client.execute(request);
+        long acquire = RequestTimer.get(RequestTimer.PHASE_CONNECTION_ACQUIRE) - acquired;
+        RequestTimer.add(RequestTimer.PHASE_FIRST_BYTE, System.nanoTime() - start - acquire);
+        HttpEntity entity = response.getEntity();
+        if (entity != null) {
+            response.setEntity(new TimedEntity(entity, RequestTimer.PHASE_BODY_READ));
+        }
+        return response;
+    }
+
+    /**
+     * @return CODE_CANCELLED if aborted by the RequestHandle, CODE_CIRCUIT_OPEN if failed fast,
+     * otherwise CODE_CONNECTION_ERROR
+     */
+    private static AkInvokeException connectionError(IOException ioe) {
+        RequestHandle handle = sRequestHandle.get();
+        if (handle != null && handle.isAborted()) {
+            return new AkInvokeException(AkInvokeException.CODE_CANCELLED, ioe.toString(), ioe);
+        }
+        if (ioe instanceof CircuitOpenException) {
+            return new AkInvokeException(AkInvokeException.CODE_CIRCUIT_OPEN, ioe.getMessage(), ioe);
+        }
+        Log.e(TAG, ioe.toString(), ioe);
+        return new AkInvokeException(AkInvokeException.CODE_CONNECTION_ERROR, ioe.toString(), ioe);
+    }
+
+    /**
+     * Enable the http cache of GET responses, following ETag, Last-Modified and Cache-Control.
+     * @param context
+     * @param maxSizeMB max disk size of the cache
+     */
+    public static void enableHttpCache(Context context, int maxSizeMB) {
+        enableHttpCache(new File(context.getCacheDir(), "akhttpcache"), maxSizeMB);
+    }
+
+    /**
+     * @param dir directory only used by the http cache
+     * @param maxSizeMB max disk size of the cache
+     */
+    public static synchronized void enableHttpCache(File dir, int maxSizeMB) {
+        sHttpCache = new HttpCache(dir, maxSizeMB * 1024L * 1024L);
+    }
+
+    public static void disableHttpCache() {
+        sHttpCache = null;
+    }
+
+    /**
+     * @return null if not enabled
+     */
+    public static HttpCache getHttpCache() {
+        return sHttpCache;
+    }
+
+    /**
+     * Execute the GET through the http cache if enabled.
+     * The returned response comes from the cache if fresh or not modified.
+     * The requests carrying Authorization or Cookie bypass the cache.
+     */
+    private static HttpResponse executeGet(HttpGet request) throws IOException {
+        HttpCache httpCache = sHttpCache;
+        if (httpCache == null || !HttpCache.isCacheable(request)) {
+            return execute(request);
+        }
+
+        String url = request.getURI().toString();
+        HttpCache.Entry cached = httpCache.get(url);
+        if (cached != null) {
+            if (cached.isFresh()) {
+                Log.v(TAG, "http cache hit:" + url);
+                return cached.toResponse();
+            }
+            if (cached.etag != null && !request.containsHeader("If-None-Match")) {
+                request.addHeader("If-None-Match", cached.etag);
+            }
+            if (cached.lastModified != null && !request.containsHeader("If-Modified-Since")) {
+                request.addHeader("If-Modified-Since", cached.lastModified);
+            }
+        }
+
+        HttpResponse response = execute(request);
+        int statusCode = response.getStatusLine().getStatusCode();
+        if (statusCode == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+            Log.v(TAG, "http cache not modified:" + url);
+            HttpEntity entity = response.getEntity();
+            if (entity != null) entity.consumeContent();
+            return httpCache.revalidated(cached, response);
+        } else if (statusCode == HttpStatus.SC_OK) {
+            return httpCache.store(url, response);
+        }
+        return response;
     }
 
     public static String get(String url) throws AkServerStatusException, AkInvokeException {
         return get(url, null);
     }
 
-    public static String get(String url, Header[] headers)
+    public static String get(final String url, final Header[] headers)
+    throws AkServerStatusException, AkInvokeException {
+        return sRetryPolicy.execute(new RetryPolicy.Call<String>() {
+            @Override
+            public String call() throws AkServerStatusException, AkInvokeException {
+                return getOnce(url, headers);
+            }
+        });
+    }
+
+    private static String getOnce(String url, Header[] headers)
     throws AkServerStatusException, AkInvokeException {
         Log.v(TAG, "get:" + url);
         //url = url.replace("gw.api.alibaba.com", "205.204.112.73"); // usa ocean
@@ -132,7 +457,7 @@ public class HttpInvoker {
                     request.addHeader(header);
                 }
             }
-            HttpResponse response = client.execute(request);
+            HttpResponse response = executeGet(request);
             int statusCode = response.getStatusLine().getStatusCode();
             if (statusCode == HttpStatus.SC_OK
              || statusCode == HttpStatus.SC_CREATED
@@ -151,9 +476,7 @@ public class HttpInvoker {
             throw new AkInvokeException(AkInvokeException.CODE_HTTP_PROTOCOL_ERROR,
                     cpe.toString(), cpe);
         } catch (IOException ioe) {
-            Log.e(TAG, ioe.toString(), ioe);
-            throw new AkInvokeException(AkInvokeException.CODE_CONNECTION_ERROR,
-                    ioe.toString(), ioe);
+            throw connectionError(ioe);
         }
 
         Log.v(TAG, "response:" + retString);
@@ -198,7 +521,7 @@ public class HttpInvoker {
             }
             UrlEncodedFormEntity entity = new UrlEncodedFormEntity(params, CHARSET);
             request.setEntity(entity);
-            HttpResponse response = client.execute(request);
+            HttpResponse response = execute(request);
             int statusCode = response.getStatusLine().getStatusCode();
             if (statusCode == HttpStatus.SC_OK
              || statusCode == HttpStatus.SC_CREATED
@@ -222,9 +545,7 @@ public class HttpInvoker {
             throw new AkInvokeException(
                     AkInvokeException.CODE_HTTP_PROTOCOL_ERROR, e.toString(), e);
         } catch (IOException e) {
-            Log.e(TAG, e.toString(), e);
-            throw new AkInvokeException(
-                    AkInvokeException.CODE_CONNECTION_ERROR, e.toString(), e);
+            throw connectionError(e);
         } catch (ParseException e) {
             Log.e(TAG, e.toString(), e);
             throw new AkInvokeException(
@@ -235,6 +556,142 @@ public class HttpInvoker {
         return retString;
     }
     
+    /**
+     * GET and decode the json response straight from the entity stream,
+     * the response is never held as a whole String.
+     * Retried by the RetryPolicy.
+     * @param url
+     * @param headers
+     * @param pojoClass type to decode to
+     * @return null if the response has no entity
+     */
+    public static <T> T getAsPojo(final String url, final Header[] headers,
+                                  final Class<T> pojoClass)
+            throws AkServerStatusException, AkInvokeException {
+        return sRetryPolicy.execute(new RetryPolicy.Call<T>() {
+            @Override
+            public T call() throws AkServerStatusException, AkInvokeException {
+                return getAsPojoOnce(url, headers, pojoClass);
+            }
+        });
+    }
+
+    private static <T> T getAsPojoOnce(String url, Header[] headers, Class<T> pojoClass)
+            throws AkServerStatusException, AkInvokeException {
+        Log.v(TAG, "getAsPojo:" + url);
+        HttpGet request;
+        try {
+            request = new HttpGet(url);
+        } catch (IllegalArgumentException iae) {
+            throw new AkInvokeException(AkInvokeException.CODE_TARGET_HOST_OR_URL_ERROR,
+                    iae.toString(), iae);
+        }
+        if (headers != null) {
+            for (Header header : headers) {
+                request.addHeader(header);
+            }
+        }
+        return executeAsPojo(request, pojoClass);
+    }
+
+    /**
+     * POST and decode the json response straight from the entity stream.
+     * @see #getAsPojo(String, org.apache.http.Header[], Class)
+     */
+    public static <T> T postAsPojo(String url, ArrayList<NameValuePair> params, Header[] headers,
+                                   Class<T> pojoClass)
+            throws AkServerStatusException, AkInvokeException {
+        Log.v(TAG, "postAsPojo:" + url);
+        if (params == null) {
+            Log.e(TAG, "Post Parameters Null Error");
+            throw new AkInvokeException(AkInvokeException.CODE_POST_PARAM_NULL_ERROR,
+                    "Post Parameters Null Error");
+        }
+        HttpPost request;
+        try {
+            request = new HttpPost(url);
+            request.setEntity(new UrlEncodedFormEntity(params, CHARSET));
+        } catch (UnsupportedEncodingException e) {
+            Log.e(TAG, e.toString(), e);
+            throw new AkInvokeException(
+                    AkInvokeException.CODE_HTTP_PROTOCOL_ERROR, e.toString(), e);
+        } catch (IllegalArgumentException iae) {
+            throw new AkInvokeException(AkInvokeException.CODE_TARGET_HOST_OR_URL_ERROR,
+                    iae.toString(), iae);
+        }
+        if (headers != null) {
+            for (Header header : headers) {
+                request.addHeader(header);
+            }
+        }
+        return executeAsPojo(request, pojoClass);
+    }
+
+    private static <T> T executeAsPojo(HttpUriRequest request, Class<T> pojoClass)
+            throws AkServerStatusException, AkInvokeException {
+        try {
+            HttpResponse response = (request instanceof HttpGet) ?
+                    executeGet((HttpGet) request) : execute(request);
+            int statusCode = response.getStatusLine().getStatusCode();
+            HttpEntity resEntity = response.getEntity();
+            if (statusCode == HttpStatus.SC_OK
+             || statusCode == HttpStatus.SC_CREATED
+             || statusCode == HttpStatus.SC_ACCEPTED) {
+                if (resEntity == null) return null;
+                // the gzip interceptor has wrapped the entity, so here is the ungzipped stream
+                InputStream is = resEntity.getContent();
+                long read = RequestTimer.get(RequestTimer.PHASE_BODY_READ);
+                long start = System.nanoTime();
+                try {
+                    String charset = nonUtfCharset(resEntity);
+                    T pojo = (charset == null) ? JsonMapper.json2pojo(is, pojoClass)
+                            : JsonMapper.json2value(new InputStreamReader(is, charset), pojoClass);
+                    // binding is interleaved with reading, so take the reading out
+                    RequestTimer.add(RequestTimer.PHASE_JSON_BIND, System.nanoTime() - start
+                            - (RequestTimer.get(RequestTimer.PHASE_BODY_READ) - read));
+                    return pojo;
+                } catch (JsonProcessingException e) {
+                    request.abort(); // no need to download the rest
+                    throw e;
+                } finally {
+                    try {
+                        is.close();
+                    } catch (IOException ignore) { }
+                }
+            } else {
+                throw new AkServerStatusException(statusCode,
+                        EntityUtils.toString(resEntity, CHARSET));
+            }
+        } catch (JsonProcessingException e) {
+            Log.e(TAG, e.toString(), e);
+            throw new AkInvokeException(AkInvokeException.CODE_JSONPROCESS_EXCEPTION,
+                    e.getMessage(), e);
+        } catch (ClientProtocolException cpe) {
+            Log.e(TAG, cpe.toString(), cpe);
+            throw new AkInvokeException(AkInvokeException.CODE_HTTP_PROTOCOL_ERROR,
+                    cpe.toString(), cpe);
+        } catch (IOException ioe) {
+            throw connectionError(ioe);
+        }
+    }
+
+    /**
+     * Jackson detects the UTF encodings only, so the others declared by the response,
+     * such as GBK, are decoded by a Reader
+     * @return the declared charset if not UTF and supported, otherwise null
+     */
+    private static String nonUtfCharset(HttpEntity entity) {
+        try {
+            String charset = EntityUtils.getContentCharSet(entity);
+            if (charset == null || charset.toUpperCase().startsWith("UTF")) return null;
+            return Charset.isSupported(charset) ? charset : null;
+        } catch (ParseException e) {
+            return null;
+        } catch (IllegalCharsetNameException e) {
+            return null;
+        }
+    }
+
     public static String put(String url, HashMap<String, String> map) {
         return "";
     }
@@ -244,7 +701,12 @@ public class HttpInvoker {
     }
 
     private static final int DEFAULT_BUFFER_SIZE = 65536;
-    private static byte[] retrieveImageData(InputStream inputStream, int fileSize, ProgressBar progressBar)
+    /**
+     * @param tee also receives the bytes read, nullable
+     * @return null if the data is shorter than fileSize
+     */
+    private static byte[] retrieveImageData(InputStream inputStream, int fileSize, ProgressBar progressBar,
+                                            OutputStream tee)
             throws IOException {
 
         // determine the remoteimageview size and allocate a buffer
@@ -262,8 +724,10 @@ public class HttpInvoker {
                 int bytesRead = 0;
                 while (bytesRead != -1) {
                     bytesRead = istream.read(buffer, 0, DEFAULT_BUFFER_SIZE);
-                    if (bytesRead > 0)
+                    if (bytesRead > 0) {
                         buf.write(buffer, 0, bytesRead);
+                        if (tee != null) tee.write(buffer, 0, bytesRead);
+                    }
                 }
                 return buf.toByteArray();
             } else {
@@ -271,8 +735,10 @@ public class HttpInvoker {
 
                 int bytesRead = 0;
                 int offset = 0;
-                while (bytesRead != -1 && offset < fileSize) {
+                while (offset < fileSize) {
                     bytesRead = istream.read(imageData, offset, fileSize - offset);
+                    if (bytesRead == -1) return null;
+                    if (tee != null) tee.write(imageData, offset, bytesRead);
                     offset += bytesRead;
                     // process reporting
                     try {
@@ -292,13 +758,15 @@ public class HttpInvoker {
         }
     }
 
-    private static final int NUM_RETRIES = 2;
-    private static final int DEFAULT_RETRY_SLEEP_TIME = 1000;
+    private static final SingleFlight<String, Bitmap> sBitmapsInFlight =
+            new SingleFlight<String, Bitmap>();
 
     /**
      * Vversion 2 remoteimageview download impl, use byte[] to decode.
      * Note: Recommanded to use this method instead of version 1.
-     * NUM_RETRIES retry.
+     * Retried by the RetryPolicy, also if the image data is incomplete.
+     * The concurrent downloads of the same url and referer share one download and decoding,
+     * only the first caller's progressBar is updated.
      * @param imgUrl
      * @param httpReferer http Referer
      * @return
@@ -306,76 +774,112 @@ public class HttpInvoker {
      * @throws AkInvokeException
      */
     public static Bitmap getBitmapFromUrl(String imgUrl, String httpReferer, ProgressBar progressBar)
+    throws AkServerStatusException, AkInvokeException {
+        return getBitmapFromUrl(imgUrl, httpReferer, progressBar, null);
+    }
+
+    /**
+     * Download and decode the image, and stream the raw bytes to the sink while downloading,
+     * such as to cache the image as the server encoded it.
+     * Only the caller doing the shared download writes to its sink.
+     * @param sink receives the body of each attempt, committed if decoded; nullable
+     * @see #getBitmapFromUrl(String, String, android.widget.ProgressBar)
+     */
+    public static Bitmap getBitmapFromUrl(final String imgUrl, final String httpReferer,
+                                          final ProgressBar progressBar, final BodySink sink)
+    throws AkServerStatusException, AkInvokeException {
+        String key = "GET " + imgUrl.trim() + " Referer:" + httpReferer;
+        return sBitmapsInFlight.execute(key, new SingleFlight.Loader<Bitmap>() {
+            @Override
+            public Bitmap load() throws AkException {
+                return sRetryPolicy.execute(new RetryPolicy.Call<Bitmap>() {
+                    @Override
+                    public Bitmap call() throws AkServerStatusException, AkInvokeException {
+                        return downloadBitmap(imgUrl, httpReferer, progressBar, sink);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * download and decode once.
+     */
+    private static Bitmap downloadBitmap(String imgUrl, String httpReferer, ProgressBar progressBar,
+                                         BodySink sink)
     throws AkServerStatusException, AkInvokeException {
         imgUrl = imgUrl.trim();
         Log.v(TAG, "getBitmapFromUrl:" + imgUrl);
 
-        int timesTried = 1;
+        OutputStream tee = null;
+        boolean committed = false;
+        try {
+            if (progressBar != null) {
+                progressBar.setProgress(0);
+            }
+            HttpGet request = new HttpGet(imgUrl);
+            if (httpReferer != null) request.addHeader("Referer", httpReferer);
+            HttpResponse response = execute(request);
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode == HttpStatus.SC_OK
+                    || statusCode == HttpStatus.SC_CREATED
+                    || statusCode == HttpStatus.SC_ACCEPTED) {
+                HttpEntity resEntity = response.getEntity();
+                InputStream inputStream = resEntity.getContent();
 
-        while (timesTried <= NUM_RETRIES) {
-            timesTried++;
-            try {
-                if (progressBar != null) {
-                    progressBar.setProgress(0);
+                if (sink != null) tee = sink.begin();
+                byte[] imgBytes = retrieveImageData(
+                        inputStream, (int)(resEntity.getContentLength()), progressBar, tee);
+                if (imgBytes == null) {
+                    throw new AkInvokeException(AkInvokeException.CODE_IO_EXCEPTION,
+                            "Incomplete image data of " + imgUrl);
                 }
-                HttpGet request = new HttpGet(imgUrl);
-                if (httpReferer != null) request.addHeader("Referer", httpReferer);
-                HttpResponse response = client.execute(request);
-                int statusCode = response.getStatusLine().getStatusCode();
-                if (statusCode == HttpStatus.SC_OK
-                        || statusCode == HttpStatus.SC_CREATED
-                        || statusCode == HttpStatus.SC_ACCEPTED) {
-                    HttpEntity resEntity = response.getEntity();
-                    InputStream inputStream = resEntity.getContent();
 
-                    byte[] imgBytes = retrieveImageData(
-                            inputStream, (int)(resEntity.getContentLength()), progressBar);
-                    if (imgBytes == null) {
-                        SystemClock.sleep(DEFAULT_RETRY_SLEEP_TIME);
-                        continue;
-                    }
-
-                    Bitmap bm = null;
-                    try {
-                        bm = ImageUtil.decodeSampledBitmapFromByteArray(
-                                imgBytes, 0, imgBytes.length, 682, 682);
-                    } catch (OutOfMemoryError ooe) {
-                        Log.e(TAG, ooe.toString(), ooe);
-                        return null; // if oom, no need to retry.
-                    }
-                    if (bm == null) {
-                        SystemClock.sleep(DEFAULT_RETRY_SLEEP_TIME);
-                        continue;
-                    }
-                    return bm;
-                } else {
-                    HttpEntity resEntity = response.getEntity();
-                    throw new AkServerStatusException(
-                            response.getStatusLine().getStatusCode(),
-                            EntityUtils.toString(resEntity, CHARSET));
+                Bitmap bm = null;
+                try {
+                    bm = ImageUtil.decodeSampledBitmapFromByteArray(
+                            imgBytes, 0, imgBytes.length, 682, 682);
+                } catch (OutOfMemoryError ooe) {
+                    Log.e(TAG, ooe.toString(), ooe);
+                    return null; // if oom, no need to retry.
+                }
+                if (bm == null) {
+                    throw new AkInvokeException(AkInvokeException.CODE_IO_EXCEPTION,
+                            "Undecodable image data of " + imgUrl);
+                }
+                if (tee != null) {
+                    sink.commit(tee);
+                    committed = true;
                 }
-            } catch (ClientProtocolException cpe) {
-                Log.e(TAG, cpe.toString(), cpe);
-                throw new AkInvokeException(AkInvokeException.CODE_HTTP_PROTOCOL_ERROR,
-                        cpe.toString(), cpe);
-            } catch (IOException ioe) {
-                Log.e(TAG, ioe.toString(), ioe);
-                throw new AkInvokeException(AkInvokeException.CODE_CONNECTION_ERROR,
-                        ioe.toString(), ioe);
-            } catch (IllegalStateException ise) {
-                Log.e(TAG, ise.toString(), ise);
-                throw new AkInvokeException(AkInvokeException.CODE_TARGET_HOST_OR_URL_ERROR,
-                        ise.toString(), ise);
-            } catch (IllegalArgumentException iae) {
-                throw new AkInvokeException(AkInvokeException.CODE_TARGET_HOST_OR_URL_ERROR,
-                        iae.toString(), iae);
-            } catch (Exception e) {
-                throw new  AkInvokeException(AkInvokeException.CODE_UNKOWN_ERROR, e.toString(), e);
+                return bm;
+            } else {
+                HttpEntity resEntity = response.getEntity();
+                throw new AkServerStatusException(
+                        response.getStatusLine().getStatusCode(),
+                        EntityUtils.toString(resEntity, CHARSET));
             }
-
+        } catch (AkServerStatusException e) {
+            throw e;
+        } catch (AkInvokeException e) {
+            throw e;
+        } catch (ClientProtocolException cpe) {
+            Log.e(TAG, cpe.toString(), cpe);
+            throw new AkInvokeException(AkInvokeException.CODE_HTTP_PROTOCOL_ERROR,
+                    cpe.toString(), cpe);
+        } catch (IOException ioe) {
+            throw connectionError(ioe);
+        } catch (IllegalStateException ise) {
+            Log.e(TAG, ise.toString(), ise);
+            throw new AkInvokeException(AkInvokeException.CODE_TARGET_HOST_OR_URL_ERROR,
+                    ise.toString(), ise);
+        } catch (IllegalArgumentException iae) {
+            throw new AkInvokeException(AkInvokeException.CODE_TARGET_HOST_OR_URL_ERROR,
+                    iae.toString(), iae);
+        } catch (Exception e) {
+            throw new  AkInvokeException(AkInvokeException.CODE_UNKOWN_ERROR, e.toString(), e);
+        } finally {
+            if (tee != null && !committed) sink.abort(tee);
         }
-
-        return null;
     }
 
     /**
@@ -386,52 +890,57 @@ public class HttpInvoker {
      * @throws AkServerStatusException
      * @throws AkInvokeException
      */
-    public static Bitmap getImageFromUrl(String imgUrl, int inSampleSize) 
+    public static Bitmap getImageFromUrl(final String imgUrl, final int inSampleSize)
+    throws AkServerStatusException, AkInvokeException {
+        return sRetryPolicy.execute(new RetryPolicy.Call<Bitmap>() {
+            @Override
+            public Bitmap call() throws AkServerStatusException, AkInvokeException {
+                return getImageOnce(imgUrl, inSampleSize);
+            }
+        });
+    }
+
+    private static Bitmap getImageOnce(String imgUrl, int inSampleSize)
     throws AkServerStatusException, AkInvokeException {
         Log.v(TAG, "getImageFromUrl:" + imgUrl);
         Bitmap bitmap = null;
-        for (int cnt = 0; cnt < NUM_RETRIES; cnt++) {
-            try {
-                HttpGet request = new HttpGet(imgUrl);
-                HttpResponse response = client.execute(request);
-                int statusCode = response.getStatusLine().getStatusCode();
-                if (statusCode == HttpStatus.SC_OK
-                        || statusCode == HttpStatus.SC_CREATED
-                        || statusCode == HttpStatus.SC_ACCEPTED) {
-                    HttpEntity resEntity = response.getEntity();
-                    try {
-                        BitmapFactory.Options options = new BitmapFactory.Options();
-                        if (inSampleSize > 0 && inSampleSize < 10) {
-                            options.inSampleSize = inSampleSize;
-                        } else {
-                            options.inSampleSize = 0;
-                        }
-                        InputStream inputStream = resEntity.getContent();
-
-                        // return BitmapFactory.decodeStream(inputStream);
-                        // Bug on slow connections, fixed in future release.
-                        bitmap = BitmapFactory.decodeStream(new FlushedInputStream(
-                                inputStream), null, options);
-                    } catch (Exception e) {
-                        e.printStackTrace();  //TODO no op
-                        // no op
+        try {
+            HttpGet request = new HttpGet(imgUrl);
+            HttpResponse response = execute(request);
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode == HttpStatus.SC_OK
+                    || statusCode == HttpStatus.SC_CREATED
+                    || statusCode == HttpStatus.SC_ACCEPTED) {
+                HttpEntity resEntity = response.getEntity();
+                try {
+                    BitmapFactory.Options options = new BitmapFactory.Options();
+                    if (inSampleSize > 0 && inSampleSize < 10) {
+                        options.inSampleSize = inSampleSize;
+                    } else {
+                        options.inSampleSize = 0;
                     }
-                    break;
-                } else {
-                    HttpEntity resEntity = response.getEntity();
-                    throw new AkServerStatusException(
-                            response.getStatusLine().getStatusCode(),
-                            EntityUtils.toString(resEntity, CHARSET));
+                    InputStream inputStream = resEntity.getContent();
+
+                    // return BitmapFactory.decodeStream(inputStream);
+                    // Bug on slow connections, fixed in future release.
+                    bitmap = BitmapFactory.decodeStream(new FlushedInputStream(
+                            inputStream), null, options);
+                } catch (Exception e) {
+                    e.printStackTrace();  //TODO no op
+                    // no op
                 }
-            } catch (ClientProtocolException cpe) {
-                Log.e(TAG, cpe.toString(), cpe);
-                throw new AkInvokeException(AkInvokeException.CODE_HTTP_PROTOCOL_ERROR,
-                        cpe.toString(), cpe);
-            } catch (IOException ioe) {
-                Log.e(TAG, ioe.toString(), ioe);
-                throw new AkInvokeException(AkInvokeException.CODE_CONNECTION_ERROR,
-                        ioe.toString(), ioe);
+            } else {
+                HttpEntity resEntity = response.getEntity();
+                throw new AkServerStatusException(
+                        response.getStatusLine().getStatusCode(),
+                        EntityUtils.toString(resEntity, CHARSET));
             }
+        } catch (ClientProtocolException cpe) {
+            Log.e(TAG, cpe.toString(), cpe);
+            throw new AkInvokeException(AkInvokeException.CODE_HTTP_PROTOCOL_ERROR,
+                    cpe.toString(), cpe);
+        } catch (IOException ioe) {
+            throw connectionError(ioe);
         }
         return bitmap;
     }
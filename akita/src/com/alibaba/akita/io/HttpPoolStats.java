@@ -0,0 +1,49 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.akita.io;
+
+/**
+ * Snapshot of HttpInvoker's connection pool
+ *
+ * @author zhe.yangz
+ */
+public class HttpPoolStats {
+    /** connections in use */
+    public int leased;
+    /** idle connections kept alive in pool */
+    public int available;
+    /** requests waiting for a connection */
+    public int pending;
+    public int maxPerRoute;
+    public int maxTotal;
+    /** count of connections acquired, or timed out waiting */
+    public long waitCount;
+    /** total millis waited to acquire connections */
+    public long waitTotalMillis;
+    public long waitMaxMillis;
+
+    /**
+     * @return average millis waited to acquire a connection
+     */
+    public long getWaitAvgMillis() {
+        return (waitCount == 0) ? 0 : waitTotalMillis / waitCount;
+    }
+
+    @Override
+    public String toString() {
+        return "leased=" + leased + " available=" + available + " pending=" + pending
+                + " max=" + maxPerRoute + "/" + maxTotal
+                + " wait(avg/max ms)=" + getWaitAvgMillis() + "/" + waitMaxMillis;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.akita.io;
+
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.HttpParams;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ThreadSafeClientConnManager counting the leased connections, the requests
+ * waiting for a connection and the time they waited.
+ *
+ * @author zhe.yangz
+ */
+class MeteredConnManager extends ThreadSafeClientConnManager {
+    /** a connection may be released more than once, so count them by identity */
+    private final ConcurrentHashMap<ManagedClientConnection, Boolean> mLeased =
+            new ConcurrentHashMap<ManagedClientConnection, Boolean>();
+    private final AtomicInteger mPending = new AtomicInteger();
+    private final AtomicLong mWaitCount = new AtomicLong();
+    private final AtomicLong mWaitTotalMillis = new AtomicLong();
+    private final AtomicLong mWaitMaxMillis = new AtomicLong();
+
+    MeteredConnManager(HttpParams params, SchemeRegistry schemeRegistry) {
+        super(params, schemeRegistry);
+    }
+
+    @Override
+    public ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+        final ClientConnectionRequest request = super.requestConnection(route, state);
+        return new ClientConnectionRequest() {
+            @Override
+            public ManagedClientConnection getConnection(long timeout, TimeUnit tunit)
+                    throws InterruptedException, ConnectionPoolTimeoutException {
+                long start = System.nanoTime();
+                mPending.incrementAndGet();
+                try {
+                    ManagedClientConnection conn = request.getConnection(timeout, tunit);
+                    mLeased.put(conn, Boolean.TRUE);
+                    return conn;
+                } finally {
+                    mPending.decrementAndGet();
+                    long waited = System.nanoTime() - start;
+                    RequestTimer.add(RequestTimer.PHASE_CONNECTION_ACQUIRE, waited);
+                    recordWait(waited / 1000000);
+                }
+            }
+
+            @Override
+            public void abortRequest() {
+                request.abortRequest();
+            }
+        };
+    }
+
+    @Override
+    public void releaseConnection(ManagedClientConnection conn, long validDuration, TimeUnit timeUnit) {
+        mLeased.remove(conn);
+        super.releaseConnection(conn, validDuration, timeUnit);
+    }
+
+    private void recordWait(long millis) {
+        mWaitCount.incrementAndGet();
+        mWaitTotalMillis.addAndGet(millis);
+        long max;
+        while (millis > (max = mWaitMaxMillis.get())) {
+            if (mWaitMaxMillis.compareAndSet(max, millis)) break;
+        }
+    }
+
+    int getLeased() {
+        return mLeased.size();
+    }
+
+    HttpPoolStats getStats(int maxPerRoute, int maxTotal) {
+        HttpPoolStats stats = new HttpPoolStats();
+        stats.leased = mLeased.size();
+        stats.available = Math.max(getConnectionsInPool() - stats.leased, 0);
+        stats.pending = mPending.get();
+        stats.maxPerRoute = maxPerRoute;
+        stats.maxTotal = maxTotal;
+        stats.waitCount = mWaitCount.get();
+        stats.waitTotalMillis = mWaitTotalMillis.get();
+        stats.waitMaxMillis = mWaitMaxMillis.get();
+        return stats;
+    }
+}
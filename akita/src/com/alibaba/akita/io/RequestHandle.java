@@ -0,0 +1,49 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alibaba.akita.io;
+
+import org.apache.http.client.methods.AbortableHttpRequest;
+
+/**
+ * Handle to abort the HttpGet/HttpPost executed by HttpInvoker on the thread
+ * the handle is bound to, see HttpInvoker.setRequestHandle().
+ *
+ * @author zhe.yangz
+ */
+public class RequestHandle {
+    private AbortableHttpRequest mRequest;
+    private boolean mAborted = false;
+
+    /**
+     * Abort the current request, and the later requests using this handle.
+     */
+    public synchronized void abort() {
+        mAborted = true;
+        if (mRequest != null) {
+            mRequest.abort();
+        }
+    }
+
+    public synchronized boolean isAborted() {
+        return mAborted;
+    }
+
+    synchronized void attach(AbortableHttpRequest request) {
+        mRequest = request;
+        if (mAborted) {
+            request.abort();
+        }
+    }
+}
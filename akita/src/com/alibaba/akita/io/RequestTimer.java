@@ -0,0 +1,116 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alibaba.akita.io;
+
+/**
+ * Monotonic per-phase timings of one API invocation, bound to the invoking thread
+ * so the layers below (HttpInvoker, connection pool) add their phases to it.
+ * Nothing is recorded on threads without a bound timer.
+ *
+ * @author zhe.yangz
+ */
+public class RequestTimer {
+    public static final int PHASE_BUILD_PARAMS = 0;
+    public static final int PHASE_SIGN = 1;
+    public static final int PHASE_CONNECTION_ACQUIRE = 2;
+    /** request sent, until the response headers are received */
+    public static final int PHASE_FIRST_BYTE = 3;
+    public static final int PHASE_DOWNLOAD = 4;
+    public static final int PHASE_GUNZIP = 5;
+    public static final int PHASE_JSON_BIND = 6;
+    public static final int PHASE_TOTAL = 7;
+    public static final int PHASE_COUNT = 8;
+
+    public static final String[] PHASE_NAMES = {
+            "build", "sign", "acquire", "ttfb", "download", "gunzip", "bind", "total"
+    };
+
+    /** nanos reading the response body as the caller sees it, download and gunzip together */
+    static final int PHASE_BODY_READ = PHASE_COUNT;
+
+    private static final ThreadLocal<RequestTimer> sCurrent = new ThreadLocal<RequestTimer>();
+
+    private final long[] mNanos = new long[PHASE_COUNT + 1];
+    private final long mStart = System.nanoTime();
+    private boolean mGzipped = false;
+    private long[] mStopped;
+    /** timer of the outer invocation, such as an API invoked while signing */
+    private RequestTimer mOuter;
+
+    /**
+     * Bind a new timer to the current thread
+     * @return the timer
+     */
+    public static RequestTimer start() {
+        RequestTimer timer = new RequestTimer();
+        timer.mOuter = sCurrent.get();
+        sCurrent.set(timer);
+        return timer;
+    }
+
+    /**
+     * @return timer bound to the current thread, null if none
+     */
+    public static RequestTimer current() {
+        return sCurrent.get();
+    }
+
+    /**
+     * Add nanos to a phase of the current thread's timer, if any
+     */
+    public static void add(int phase, long nanos) {
+        RequestTimer timer = sCurrent.get();
+        if (timer != null) timer.mNanos[phase] += nanos;
+    }
+
+    /**
+     * @return nanos of a phase of the current thread's timer, 0 if none
+     */
+    static long get(int phase) {
+        RequestTimer timer = sCurrent.get();
+        return (timer == null) ? 0 : timer.mNanos[phase];
+    }
+
+    static void markGzipped() {
+        RequestTimer timer = sCurrent.get();
+        if (timer != null) timer.mGzipped = true;
+    }
+
+    /**
+     * Unbind this timer and close its total, only the first call counts
+     * @return nanos of each phase, index by PHASE_*
+     */
+    public long[] stop() {
+        if (mStopped != null) return mStopped;
+        if (sCurrent.get() == this) {
+            if (mOuter == null) {
+                sCurrent.remove();
+            } else {
+                sCurrent.set(mOuter);
+            }
+        }
+        long[] nanos = new long[PHASE_COUNT];
+        System.arraycopy(mNanos, 0, nanos, 0, PHASE_COUNT);
+        // the body read is the download, and the gunzip on top of it if gzipped
+        if (mGzipped) {
+            nanos[PHASE_GUNZIP] = Math.max(mNanos[PHASE_BODY_READ] - mNanos[PHASE_DOWNLOAD], 0);
+        } else {
+            nanos[PHASE_DOWNLOAD] = mNanos[PHASE_BODY_READ];
+        }
+        nanos[PHASE_TOTAL] = System.nanoTime() - mStart;
+        mStopped = nanos;
+        return nanos;
+    }
+}
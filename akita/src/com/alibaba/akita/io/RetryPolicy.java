@@ -0,0 +1,149 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alibaba.akita.io;
+
+import com.alibaba.akita.exception.AkException;
+import com.alibaba.akita.exception.AkInvokeException;
+import com.alibaba.akita.exception.AkServerStatusException;
+import com.alibaba.akita.util.Log;
+
+import java.util.Random;
+
+/**
+ * Retry of idempotent requests, with exponential backoff and full jitter.
+ * Retries are limited by a budget refilled by the first attempts, so a failing backend
+ * gets at most budgetRatio more load from the retries.
+ * Subclass to change what is retryable or the backoff.
+ *
+ * @author zhe.yangz
+ */
+public class RetryPolicy {
+    private static final String TAG = "RetryPolicy";
+
+    /** no retry */
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+
+    /**
+     * One attempt of the request
+     */
+    public interface Call<T> {
+        public T call() throws AkServerStatusException, AkInvokeException;
+    }
+
+    private final int mMaxAttempts;
+    private final long mBaseDelayMillis;
+    private final long mMaxDelayMillis;
+    private final Random mRandom = new Random();
+
+    private double mBudgetRatio = 0.1;
+    private double mBudgetMax = 10;
+    private double mBudget = mBudgetMax;
+
+    /**
+     * @param maxAttempts attempts including the first one
+     * @param baseDelayMillis backoff before the first retry, doubled for each later retry
+     * @param maxDelayMillis max backoff
+     */
+    public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+        mMaxAttempts = Math.max(maxAttempts, 1);
+        mBaseDelayMillis = baseDelayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * @param ratio retries allowed per request, default 0.1
+     * @param max max retries saved up, default 10
+     */
+    public synchronized void setBudget(double ratio, double max) {
+        mBudgetRatio = ratio;
+        mBudgetMax = max;
+        mBudget = Math.min(mBudget, max);
+    }
+
+    /**
+     * Connection errors, and 408 429 502 503 504 are retryable.
+     * Cancellation and an open circuit are not.
+     * @param e the failure of an attempt
+     * @return true if worth another attempt
+     */
+    public boolean isRetryable(AkException e) {
+        if (e instanceof AkInvokeException) {
+            int code = ((AkInvokeException) e).code;
+            return code == AkInvokeException.CODE_CONNECTION_ERROR
+                    || code == AkInvokeException.CODE_IO_EXCEPTION;
+        } else if (e instanceof AkServerStatusException) {
+            int code = ((AkServerStatusException) e).code;
+            return code == 408 || code == 429 || code == 502 || code == 503 || code == 504;
+        }
+        return false;
+    }
+
+    /**
+     * @param retry 1 for the first retry
+     * @return random millis in [0, min(maxDelay, baseDelay * 2^(retry-1))]
+     */
+    public long backoffMillis(int retry) {
+        long cap = mBaseDelayMillis << Math.min(retry - 1, 20);
+        cap = Math.min(cap, mMaxDelayMillis);
+        if (cap <= 0) return 0;
+        synchronized (mRandom) {
+            return (long) (mRandom.nextDouble() * (cap + 1));
+        }
+    }
+
+    /**
+     * Do the call, retry it while failing retryably and attempts and budget remain.
+     * @param call the request
+     * @return result of the successful attempt
+     */
+    public <T> T execute(Call<T> call) throws AkServerStatusException, AkInvokeException {
+        deposit();
+        int attempt = 1;
+        while (true) {
+            try {
+                return call.call();
+            } catch (AkServerStatusException e) {
+                retryOrThrow(e, attempt);
+            } catch (AkInvokeException e) {
+                retryOrThrow(e, attempt);
+            }
+            attempt++;
+        }
+    }
+
+    private <E extends AkException> void retryOrThrow(E e, int attempt) throws E {
+        if (attempt >= mMaxAttempts || !isRetryable(e) || !withdraw()) {
+            throw e;
+        }
+        long backoff = backoffMillis(attempt);
+        Log.w(TAG, "retry " + attempt + " in " + backoff + "ms after " + e);
+        try {
+            Thread.sleep(backoff);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw e;
+        }
+    }
+
+    private synchronized void deposit() {
+        mBudget = Math.min(mBudget + mBudgetRatio, mBudgetMax);
+    }
+
+    private synchronized boolean withdraw() {
+        if (mBudget < 1) return false;
+        mBudget -= 1;
+        return true;
+    }
+}
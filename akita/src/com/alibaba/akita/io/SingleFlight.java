@@ -0,0 +1,121 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alibaba.akita.io;
+
+import com.alibaba.akita.exception.AkException;
+import com.alibaba.akita.exception.AkInvokeException;
+import com.alibaba.akita.exception.AkServerStatusException;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Coalesce the identical in-flight requests.
+ * The first caller of a key does the load on its own thread, the concurrent callers
+ * of the same key wait for and share its result or exception.
+ * A waiting caller can be interrupted to stop waiting, the shared load goes on;
+ * if the first caller is cancelled (CODE_CANCELLED), the waiting callers load again by themselves.
+ *
+ * @author zhe.yangz
+ */
+public class SingleFlight<K, V> {
+
+    public interface Loader<V> {
+        public V load() throws AkException;
+    }
+
+    private static class Call<V> {
+        final CountDownLatch done = new CountDownLatch(1);
+        V value;
+        AkException exception;
+        RuntimeException runtimeException;
+        Error error;
+    }
+
+    private final ConcurrentHashMap<K, Call<V>> mCalls = new ConcurrentHashMap<K, Call<V>>();
+
+    /**
+     * @param key fully resolved request, such as method, url and relevant headers
+     * @param loader does the request, only called if no identical request in flight
+     * @return the loaded value, maybe shared with other callers
+     */
+    public V execute(K key, Loader<V> loader) throws AkServerStatusException, AkInvokeException {
+        while (true) {
+            Call<V> call = new Call<V>();
+            Call<V> inFlight = mCalls.putIfAbsent(key, call);
+            if (inFlight == null) {
+                return lead(key, call, loader);
+            }
+
+            await(inFlight);
+            if (inFlight.exception instanceof AkInvokeException
+                    && ((AkInvokeException) inFlight.exception).code
+                            == AkInvokeException.CODE_CANCELLED) {
+                continue; // the leader was cancelled, but this caller was not
+            }
+            return result(inFlight);
+        }
+    }
+
+    private V lead(K key, Call<V> call, Loader<V> loader)
+            throws AkServerStatusException, AkInvokeException {
+        try {
+            call.value = loader.load();
+        } catch (AkException e) {
+            call.exception = e;
+        } catch (RuntimeException e) {
+            call.runtimeException = e;
+        } catch (Error e) {
+            call.error = e;
+        } finally {
+            mCalls.remove(key);
+            call.done.countDown();
+        }
+        return result(call);
+    }
+
+    /**
+     * @return count of the requests in flight
+     */
+    public int getInFlightCount() {
+        return mCalls.size();
+    }
+
+    private void await(Call<V> call) throws AkInvokeException {
+        try {
+            call.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AkInvokeException(AkInvokeException.CODE_CANCELLED,
+                    "Cancelled while waiting for the in-flight request", e);
+        }
+    }
+
+    private V result(Call<V> call) throws AkServerStatusException, AkInvokeException {
+        if (call.exception instanceof AkServerStatusException) {
+            throw (AkServerStatusException) call.exception;
+        } else if (call.exception instanceof AkInvokeException) {
+            throw (AkInvokeException) call.exception;
+        } else if (call.exception != null) {
+            throw new AkInvokeException(AkInvokeException.CODE_UNKOWN_ERROR,
+                    call.exception.toString(), call.exception);
+        } else if (call.runtimeException != null) {
+            throw call.runtimeException;
+        } else if (call.error != null) {
+            throw call.error;
+        }
+        return call.value;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alibaba.akita.io;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Entity adding the time spent reading its content to a RequestTimer phase
+ * of the reading thread.
+ *
+ * @author zhe.yangz
+ */
+class TimedEntity extends HttpEntityWrapper {
+    private final int mPhase;
+
+    TimedEntity(HttpEntity wrapped, int phase) {
+        super(wrapped);
+        mPhase = phase;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        return new FilterInputStream(wrappedEntity.getContent()) {
+            @Override
+            public int read() throws IOException {
+                long start = System.nanoTime();
+                try {
+                    return super.read();
+                } finally {
+                    RequestTimer.add(mPhase, System.nanoTime() - start);
+                }
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                long start = System.nanoTime();
+                try {
+                    return super.read(b, off, len);
+                } finally {
+                    RequestTimer.add(mPhase, System.nanoTime() - start);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+        InputStream in = getContent();
+        try {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                outstream.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alibaba.akita.proxy;
+
+import android.content.Context;
+import com.alibaba.akita.cache.AkCacheManager;
+import com.alibaba.akita.cache.MemCache;
+import com.alibaba.akita.cache.SimpleCache;
+import com.alibaba.akita.exception.AkException;
+import com.alibaba.akita.exception.AkInvokeException;
+import com.alibaba.akita.exception.AkServerStatusException;
+import com.alibaba.akita.util.Log;
+import org.apache.http.NameValuePair;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Response cache of the @AkCache API methods.
+ * MemCache of decoded results in front of the SimpleCache of raw responses,
+ * the SimpleCache tier is used only after init(context).
+ * Stale responses are served while refreshed in background, except for the APIs
+ * using @AkSignature, which refresh with the caller's fresh signature.
+ *
+ * @author zhe.yangz
+ */
+public class ApiCache {
+    private static final String TAG = "ApiCache";
+
+    private static final int MEM_CACHE_SIZE = 64;
+    private static final String SIMPLE_CACHE_TAG = "akapicache";
+    private static final char SAVED_AT_SEPARATOR = '|';
+
+    private static final MemCache<String, Entry> sMemCache =
+            AkCacheManager.newMemLruCache(MEM_CACHE_SIZE);
+    private static volatile SimpleCache sSimpleCache;
+
+    /** keys being refreshed in background */
+    private static final ConcurrentHashMap<String, Boolean> sRefreshing =
+            new ConcurrentHashMap<String, Boolean>();
+    private static final ThreadPoolExecutor sRefresher = new ThreadPoolExecutor(
+            1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "AkApiCacheRefresher");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private static final AtomicLong sHitCount = new AtomicLong();
+    private static final AtomicLong sStaleHitCount = new AtomicLong();
+    private static final AtomicLong sMissCount = new AtomicLong();
+
+    private static class Entry {
+        final Object value;
+        final long savedAt;
+
+        Entry(Object value, long savedAt) {
+            this.value = value;
+            this.savedAt = savedAt;
+        }
+    }
+
+    /**
+     * Persist the cached responses in SimpleCache as well
+     * @param context
+     */
+    public static void init(Context context) {
+        if (sSimpleCache == null) {
+            synchronized (ApiCache.class) {
+                if (sSimpleCache == null) {
+                    sSimpleCache = AkCacheManager.getSimpleCache(context, SIMPLE_CACHE_TAG);
+                }
+            }
+        }
+    }
+
+    /**
+     * Clear all the cached responses
+     */
+    public static void clear() {
+        sMemCache.clear();
+        SimpleCache simpleCache = sSimpleCache;
+        if (simpleCache != null) simpleCache.removeAll();
+    }
+
+    /**
+     * @return count of invocations returned fresh cached response
+     */
+    public static long getHitCount() {
+        return sHitCount.get();
+    }
+
+    /**
+     * @return count of invocations returned stale cached response, and refreshed in background
+     */
+    public static long getStaleHitCount() {
+        return sStaleHitCount.get();
+    }
+
+    /**
+     * @return count of invocations went to network
+     */
+    public static long getMissCount() {
+        return sMissCount.get();
+    }
+
+    /**
+     * @param invokeUrl resolved url
+     * @param paramsMap params before signature
+     * @return cache key, independent of params' order
+     */
+    static String key(String apiName, String invokeUrl, Map<String, String> paramsMap) {
+        StringBuilder sb = new StringBuilder(apiName).append(' ').append(invokeUrl).append('#');
+        for (Map.Entry<String, String> entry : new TreeMap<String, String>(paramsMap).entrySet()) {
+            sb.append(entry.getKey()).append('=').append(entry.getValue()).append('&');
+        }
+        return sb.toString();
+    }
+
+    static Object get(final InvokePlan plan, final String key, final String invokeUrl,
+                      final ArrayList<NameValuePair> params)
+            throws AkInvokeException, AkServerStatusException {
+        Entry entry = load(plan, key);
+        if (entry != null) {
+            long age = System.currentTimeMillis() - entry.savedAt;
+            if (age >= 0 && age <= plan.cacheTtl) {
+                sHitCount.incrementAndGet();
+                return entry.value;
+            } else if (age >= 0 && age <= plan.cacheTtl + plan.cacheStaleWhileRevalidate
+                    && plan.signatureConstructor == null) {
+                // a signed request maybe stale by its timestamp or nonce when sent in background,
+                // so a signed API refreshes in the foreground instead
+                sStaleHitCount.incrementAndGet();
+                if (sRefreshing.putIfAbsent(key, Boolean.TRUE) == null) {
+                    sRefresher.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                refresh(plan, key, invokeUrl, params);
+                            } catch (AkException e) {
+                                Log.w(TAG, "refresh " + key + " failed", e);
+                            } finally {
+                                sRefreshing.remove(key);
+                            }
+                        }
+                    });
+                }
+                return entry.value;
+            }
+        }
+        sMissCount.incrementAndGet();
+        return refresh(plan, key, invokeUrl, params);
+    }
+
+    private static Object refresh(InvokePlan plan, String key, String invokeUrl,
+                                  ArrayList<NameValuePair> params)
+            throws AkInvokeException, AkServerStatusException {
+        String body = plan.sendForString(invokeUrl, params);
+        Object value = plan.decode(body);
+        long now = System.currentTimeMillis();
+        sMemCache.put(key, new Entry(value, now));
+        SimpleCache simpleCache = sSimpleCache;
+        if (simpleCache != null && body != null) {
+            simpleCache.put(key, String.valueOf(now) + SAVED_AT_SEPARATOR + body);
+        }
+        return value;
+    }
+
+    private static Entry load(InvokePlan plan, String key) {
+        Entry entry = sMemCache.get(key);
+        if (entry != null) return entry;
+
+        SimpleCache simpleCache = sSimpleCache;
+        if (simpleCache == null) return null;
+        String saved = simpleCache.get(key);
+        if (saved == null) return null;
+        int sep = saved.indexOf(SAVED_AT_SEPARATOR);
+        try {
+            long savedAt = Long.parseLong(saved.substring(0, sep));
+            entry = new Entry(plan.decode(saved.substring(sep + 1)), savedAt);
+            sMemCache.put(key, entry);
+            return entry;
+        } catch (Exception e) {
+            Log.w(TAG, "drop broken cache of " + key, e);
+            simpleCache.remove(key);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alibaba.akita.proxy;
+
+import com.alibaba.akita.exception.AkException;
+
+/**
+ * Callback of an asynchronous API method, declared as the last param of the method.
+ * Called on the thread of ApiExecutor's callback executor, main thread for default;
+ * not called if the invocation is cancelled.
+ *
+ * @author zhe.yangz
+ */
+public interface ApiCallback<T> {
+    public void onSuccess(T result);
+    public void onFailure(AkException e);
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alibaba.akita.proxy;
+
+import android.os.Handler;
+import android.os.Looper;
+import com.alibaba.akita.exception.AkException;
+import com.alibaba.akita.exception.AkInvokeException;
+import com.alibaba.akita.io.HttpInvoker;
+import com.alibaba.akita.io.RequestHandle;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor of the asynchronous API methods, the ones returning Future or
+ * having an ApiCallback as the last param.
+ * Cancelling the Future aborts the underlying HttpGet/HttpPost.
+ *
+ * @author zhe.yangz
+ */
+public class ApiExecutor {
+    private static final int DEFAULT_THREADS = 4;
+    private static final int DEFAULT_QUEUE_CAPACITY = 128;
+
+    private static ThreadPoolExecutor sExecutor =
+            newExecutor(DEFAULT_THREADS, DEFAULT_QUEUE_CAPACITY);
+    private static Executor sCallbackExecutor;
+
+    private static ThreadPoolExecutor newExecutor(int threads, int queueCapacity) {
+        final AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(queueCapacity),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "AkApiExecutor #" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        if (r instanceof ApiFuture) {
+                            ((ApiFuture<?>) r).reject();
+                        }
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * @param threads max threads doing the network
+     * @param queueCapacity max invocations waiting, more ones are failed with CODE_REJECTED
+     */
+    public static synchronized void configure(int threads, int queueCapacity) {
+        ThreadPoolExecutor old = sExecutor;
+        sExecutor = newExecutor(threads, queueCapacity);
+        old.shutdown(); // the queued ones still run
+    }
+
+    /**
+     * @param callbackExecutor executor calling the ApiCallbacks, null for the main thread
+     */
+    public static synchronized void setCallbackExecutor(Executor callbackExecutor) {
+        sCallbackExecutor = callbackExecutor;
+    }
+
+    private static synchronized Executor getCallbackExecutor() {
+        if (sCallbackExecutor == null) {
+            final Handler handler = new Handler(Looper.getMainLooper());
+            sCallbackExecutor = new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    handler.post(command);
+                }
+            };
+        }
+        return sCallbackExecutor;
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        return sExecutor;
+    }
+
+    static <T> Future<T> submit(InvokePlan plan, InvokeParams params, ApiCallback<T> callback) {
+        ApiFuture<T> future = new ApiFuture<T>(plan, params, callback);
+        getExecutor().execute(future);
+        return future;
+    }
+
+    private static class ApiFuture<T> extends FutureTask<T> {
+        private final RequestHandle mHandle;
+        private final ApiCallback<T> mCallback;
+
+        ApiFuture(final InvokePlan plan, final InvokeParams params, ApiCallback<T> callback) {
+            this(plan, params, callback, new RequestHandle());
+        }
+
+        private ApiFuture(final InvokePlan plan, final InvokeParams params, ApiCallback<T> callback,
+                          final RequestHandle handle) {
+            super(new Callable<T>() {
+                @SuppressWarnings("unchecked")
+                @Override
+                public T call() throws Exception {
+                    HttpInvoker.setRequestHandle(handle);
+                    try {
+                        return (T) plan.execute(params);
+                    } finally {
+                        HttpInvoker.setRequestHandle(null);
+                    }
+                }
+            });
+            mHandle = handle;
+            mCallback = callback;
+        }
+
+        void reject() {
+            setException(new AkInvokeException(AkInvokeException.CODE_REJECTED,
+                    "Too many API invocations queued"));
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            mHandle.abort();
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        protected void done() {
+            if (mCallback == null || isCancelled()) return;
+
+            getCallbackExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (isCancelled()) return;
+                    T result;
+                    try {
+                        result = get();
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        mCallback.onFailure((cause instanceof AkException) ? (AkException) cause
+                                : new AkInvokeException(AkInvokeException.CODE_UNKOWN_ERROR,
+                                cause.toString(), cause));
+                        return;
+                    } catch (Exception e) {
+                        return; // cancelled or interrupted
+                    }
+                    mCallback.onSuccess(result);
+                }
+            });
+        }
+    }
+}
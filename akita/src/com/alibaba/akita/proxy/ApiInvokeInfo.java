@@ -28,4 +28,7 @@ public class ApiInvokeInfo {
     public String apiName = "none";
     public String url = "none";
     public HashMap<String, String> paramsMap = new HashMap<String, String>();
+    public long costMillis = 0;
+    /** nanos of each phase, indexed by RequestTimer.PHASE_* */
+    public long[] phaseNanos;
 }
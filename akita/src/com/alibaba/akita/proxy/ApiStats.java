@@ -16,9 +16,14 @@ package com.alibaba.akita.proxy;
 
 import com.alibaba.akita.cache.AkCacheManager;
 import com.alibaba.akita.cache.MemCache;
+import com.alibaba.akita.io.HttpInvoker;
+import com.alibaba.akita.io.HttpPoolStats;
+import com.alibaba.akita.io.RequestTimer;
 import com.alibaba.akita.util.DateUtil;
 
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Record Raw Api invocation history.
@@ -32,6 +37,9 @@ public class ApiStats {
 
     private static MemCache<Long, ApiInvokeInfo> sRecentInvocations =
             AkCacheManager.newMemLruCache(100);
+    /** apiName -> histograms indexed by RequestTimer.PHASE_* */
+    private static final ConcurrentHashMap<String, LatencyHistogram[]> sLatencies =
+            new ConcurrentHashMap<String, LatencyHistogram[]>();
 
     /**
      * Only effect on API level 12+, because of android.util.LruCache
@@ -46,4 +54,63 @@ public class ApiStats {
     public static Map<Long, ApiInvokeInfo> getApiInvocationSnapShot() {
         return sRecentInvocations.snapshot();
     }
+
+    /**
+     * Aggregate the phase timings of an invocation
+     * @param apiName
+     * @param phaseNanos nanos indexed by RequestTimer.PHASE_*
+     */
+    static void addTimings(String apiName, long[] phaseNanos) {
+        LatencyHistogram[] histograms = sLatencies.get(apiName);
+        if (histograms == null) {
+            histograms = new LatencyHistogram[RequestTimer.PHASE_COUNT];
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new LatencyHistogram();
+            }
+            LatencyHistogram[] existing = sLatencies.putIfAbsent(apiName, histograms);
+            if (existing != null) histograms = existing;
+        }
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i].record(phaseNanos[i] / 1000);
+        }
+    }
+
+    /**
+     * @param apiName
+     * @param phase RequestTimer.PHASE_*
+     * @return latencies of the phase of the API, null if never invoked
+     */
+    public static LatencyHistogram getLatencyHistogram(String apiName, int phase) {
+        LatencyHistogram[] histograms = sLatencies.get(apiName);
+        return (histograms == null) ? null : histograms[phase];
+    }
+
+    /**
+     * @return apiName -> p50/p95/p99 of each phase, such as for logging
+     */
+    public static Map<String, String> getLatencySnapShot() {
+        TreeMap<String, String> snapshot = new TreeMap<String, String>();
+        for (Map.Entry<String, LatencyHistogram[]> entry : sLatencies.entrySet()) {
+            StringBuilder sb = new StringBuilder();
+            LatencyHistogram[] histograms = entry.getValue();
+            for (int i = 0; i < histograms.length; i++) {
+                sb.append(RequestTimer.PHASE_NAMES[i]).append('[')
+                        .append(histograms[i]).append("] ");
+            }
+            snapshot.put(entry.getKey(), sb.toString().trim());
+        }
+        return snapshot;
+    }
+
+    public static void resetLatencies() {
+        sLatencies.clear();
+    }
+
+    /**
+     * Live stats of the http connection pool, to size it by HttpInvoker.configurePool()
+     * @return leased, available, pending connections and the wait time to acquire
+     */
+    public static HttpPoolStats getHttpPoolStats() {
+        return HttpInvoker.getPoolStats();
+    }
 }
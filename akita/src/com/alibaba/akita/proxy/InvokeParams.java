@@ -0,0 +1,88 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alibaba.akita.proxy;
+
+import com.alibaba.akita.util.Log;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Params bound for one API invocation, null-values are filtered out.
+ * Used by the dynamic proxy and by the generated API implementations.
+ *
+ * @author zhe.yangz
+ */
+public class InvokeParams {
+    private static final String TAG = "InvokeParams";
+
+    /** encoded params, the ones used in url will be removed */
+    final HashMap<String, String> paramsMap = new HashMap<String, String>();
+    /** params before encoding */
+    final HashMap<String, String> paramsMapOri = new HashMap<String, String>();
+    final HashMap<String, File> filesToSend = new HashMap<String, File>();
+
+    /**
+     * @param name param name of @AkParam
+     * @param value ignored if null
+     * @param encode encoding, null or "none" if not to encode
+     */
+    public void put(String name, Object value, String encode) {
+        if (value == null) return;
+        String strValue = value.toString();
+        paramsMap.put(name, isEncoding(encode) ? encode(strValue, encode) : strValue);
+        paramsMapOri.put(name, strValue);
+    }
+
+    /**
+     * Bind the $paramMap param
+     */
+    public void putMap(Map<String, String> paramMap, String encode) {
+        if (paramMap == null) return;
+        paramsMapOri.putAll(paramMap);
+        if (isEncoding(encode)) {
+            for (Map.Entry<String, String> entry : paramMap.entrySet()) {
+                String value = entry.getValue();
+                paramsMap.put(entry.getKey(), value == null ? null : encode(value, encode));
+            }
+        } else {
+            paramsMap.putAll(paramMap);
+        }
+    }
+
+    /**
+     * Bind the $filesToSend param
+     */
+    public void putFiles(Map<String, File> files) {
+        if (files == null) return;
+        filesToSend.putAll(files);
+    }
+
+    private static boolean isEncoding(String encode) {
+        return encode != null && !"none".equals(encode);
+    }
+
+    private static String encode(String value, String encode) {
+        try {
+            return URLEncoder.encode(value, encode);
+        } catch (UnsupportedEncodingException e) {
+            Log.w(TAG, "UnsupportedEncodingException:" + encode);
+            return value;
+        }
+    }
+}
@@ -0,0 +1,491 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alibaba.akita.proxy;
+
+import com.alibaba.akita.annotation.*;
+import com.alibaba.akita.exception.AkException;
+import com.alibaba.akita.exception.AkInvokeException;
+import com.alibaba.akita.exception.AkServerStatusException;
+import com.alibaba.akita.io.HttpInvoker;
+import com.alibaba.akita.io.RequestTimer;
+import com.alibaba.akita.io.RetryPolicy;
+import com.alibaba.akita.io.SingleFlight;
+import com.alibaba.akita.util.JsonMapper;
+import com.alibaba.akita.util.Log;
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+import org.codehaus.jackson.JsonProcessingException;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Future;
+
+/**
+ * Immutable invocation plan of one API method.
+ * All annotations are read and the url template is tokenized only once when the plan
+ * is compiled, so an invocation only walks the prepared arrays.
+ *
+ * @author zhe.yangz
+ */
+public class InvokePlan {
+    private static final String TAG = "InvokePlan";
+
+    static final String PARAM_MAP = "$paramMap";
+    static final String FILES_TO_SEND = "$filesToSend";
+
+    private static final SingleFlight<String, Object> sGetsInFlight =
+            new SingleFlight<String, Object>();
+
+    enum Verb {
+        GET,
+        POST
+    }
+
+    /**
+     * One annotated parameter of the method
+     */
+    static final class ParamSlot {
+        static final int KIND_VALUE = 0;
+        static final int KIND_PARAM_MAP = 1;
+        static final int KIND_FILES = 2;
+
+        final String name;
+        /** null if no encoding is needed */
+        final String encode;
+        final int kind;
+
+        ParamSlot(String name, String encode) {
+            this.name = name;
+            this.encode = (encode == null || "none".equals(encode)) ? null : encode;
+            if (PARAM_MAP.equals(name)) {
+                kind = KIND_PARAM_MAP;
+            } else if (FILES_TO_SEND.equals(name)) {
+                kind = KIND_FILES;
+            } else {
+                kind = KIND_VALUE;
+            }
+        }
+    }
+
+    final String apiName;
+    final String url;
+    final Verb verb;
+    /** slots[i] is null if the i-th parameter has no @AkParam */
+    final ParamSlot[] slots;
+    /** urlLiterals.length == urlParamNames.length + 1 */
+    final String[] urlLiterals;
+    final String[] urlParamNames;
+    final AkSignature akSignature;
+    final Constructor<?> signatureConstructor;
+    /** type of the decoded result, T of Future<T> or ApiCallback<T> if async */
+    final Class<?> returnType;
+    final boolean returnsString;
+    /** millis the cached response is fresh, 0 if not cached */
+    final long cacheTtl;
+    final long cacheStaleWhileRevalidate;
+    /** executed on ApiExecutor, the method returns Future or has an ApiCallback */
+    final boolean async;
+    /** index of the ApiCallback param, -1 if none */
+    final int callbackIndex;
+    /** POST retried by the RetryPolicy too, GET is always retried */
+    final boolean idempotent;
+
+    private InvokePlan(String apiName, String url, Verb verb, ParamSlot[] slots,
+                       AkSignature akSignature, Class<?> returnType, AkCache akCache,
+                       boolean async, int callbackIndex, boolean idempotent) {
+        this.apiName = apiName;
+        this.url = url;
+        this.verb = verb;
+        this.slots = slots;
+        this.akSignature = akSignature;
+        this.signatureConstructor = resolveSignatureConstructor(akSignature);
+        this.returnType = returnType;
+        this.returnsString = String.class.equals(returnType);
+        this.cacheTtl = (akCache == null) ? 0 : Math.max(akCache.ttl(), 0) * 1000L;
+        this.cacheStaleWhileRevalidate =
+                (akCache == null) ? 0 : Math.max(akCache.staleWhileRevalidate(), 0) * 1000L;
+        this.async = async;
+        this.callbackIndex = callbackIndex;
+        this.idempotent = idempotent;
+
+        ArrayList<String> literals = new ArrayList<String>();
+        ArrayList<String> names = new ArrayList<String>();
+        tokenizeUrl(url, literals, names);
+        this.urlLiterals = literals.toArray(new String[literals.size()]);
+        this.urlParamNames = names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * Plan of an API method, for the generated API implementations.
+     * Only the first lookup of a method reads its annotations.
+     * @param api API interface
+     * @param methodName method name
+     * @param paramTypes method's param types
+     * @return the plan
+     */
+    public static InvokePlan of(Class<?> api, String methodName, Class<?>... paramTypes) {
+        try {
+            return ProxyInvocationHandler.getPlan(api.getMethod(methodName, paramTypes));
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException(e.toString(), e);
+        }
+    }
+
+    /**
+     * Compile the plan of an API method by reading its annotations.
+     * @param method API interface method
+     * @return the plan
+     */
+    static InvokePlan compile(Method method) {
+        AkAPI akApi = method.getAnnotation(AkAPI.class);
+        if (akApi == null) {
+            throw new IllegalArgumentException(
+                    "Method " + method.getName() + " is not annotated with @AkAPI.");
+        }
+
+        Verb verb = Verb.POST; // use POST for default
+        if (method.getAnnotation(AkGET.class) != null) {
+            verb = Verb.GET;
+        }
+
+        Annotation[][] annosArr = method.getParameterAnnotations();
+        ParamSlot[] slots = new ParamSlot[annosArr.length];
+        for (int idx = 0; idx < annosArr.length; idx++) {
+            for (Annotation a : annosArr[idx]) {
+                if (AkParam.class.equals(a.annotationType())) {
+                    AkParam ap = (AkParam) a;
+                    slots[idx] = new ParamSlot(ap.value(), ap.encode());
+                }
+            }
+        }
+
+        // async if returning Future<T>, or the last param is ApiCallback<T>
+        Class<?> returnType = method.getReturnType();
+        boolean async = false;
+        int callbackIndex = -1;
+        Class<?>[] paramTypes = method.getParameterTypes();
+        if (paramTypes.length > 0
+                && ApiCallback.class.equals(paramTypes[paramTypes.length - 1])) {
+            callbackIndex = paramTypes.length - 1;
+            returnType = typeArgument(method.getGenericParameterTypes()[callbackIndex]);
+            async = true;
+        } else if (Future.class.equals(returnType)) {
+            returnType = typeArgument(method.getGenericReturnType());
+            async = true;
+        }
+
+        return new InvokePlan(method.getName(), akApi.url(), verb, slots,
+                method.getAnnotation(AkSignature.class), returnType,
+                method.getAnnotation(AkCache.class), async, callbackIndex,
+                method.getAnnotation(AkIdempotent.class) != null);
+    }
+
+    /**
+     * @return raw class of T in Future<T> or ApiCallback<T>, Object if unknown
+     */
+    private static Class<?> typeArgument(Type type) {
+        if (type instanceof ParameterizedType) {
+            Type arg = ((ParameterizedType) type).getActualTypeArguments()[0];
+            if (arg instanceof ParameterizedType) {
+                arg = ((ParameterizedType) arg).getRawType();
+            }
+            if (arg instanceof Class) {
+                return (Class<?>) arg;
+            }
+        }
+        return Object.class;
+    }
+
+    private static Constructor<?> resolveSignatureConstructor(AkSignature akSig) {
+        if (akSig == null) return null;
+        Class<?> clazzSignature = akSig.using();
+        if (InvokeSignature.class.isAssignableFrom(clazzSignature)
+                && clazzSignature.getConstructors().length > 0) {
+            return clazzSignature.getConstructors()[0];
+        }
+        Log.w(TAG, clazzSignature.getName() + " is not a usable InvokeSignature.");
+        return null;
+    }
+
+    /**
+     * Split such as http://server/{namespace}/1/do to literals and param names,
+     * the same blocks as the regex \{(.+?)\} matches.
+     */
+    private static void tokenizeUrl(String url, ArrayList<String> literals, ArrayList<String> names) {
+        int from = 0;
+        int start = 0;
+        while (true) {
+            int open = url.indexOf('{', from);
+            int close = (open < 0) ? -1 : url.indexOf('}', open + 2);
+            if (open < 0 || close < 0) break;
+            literals.add(url.substring(start, open));
+            names.add(url.substring(open + 1, close));
+            from = start = close + 1;
+        }
+        literals.add(url.substring(start));
+    }
+
+    /**
+     * Invoke with the proxy's args
+     * @param args Method's params' values, maybe null if no params
+     * @return the decoded result, or its Future if async
+     */
+    @SuppressWarnings("unchecked")
+    Object invoke(Object[] args) throws AkInvokeException, AkServerStatusException {
+        InvokeParams params = new InvokeParams();
+        ApiCallback<Object> callback = null;
+        if (args != null) {
+            for (int idx = 0; idx < args.length; idx++) {
+                if (idx == callbackIndex) {
+                    callback = (ApiCallback<Object>) args[idx];
+                    continue;
+                }
+                ParamSlot slot = slots[idx];
+                Object arg = args[idx];
+                if (slot == null || arg == null) continue; // filter out of null-value param
+                switch (slot.kind) {
+                    case ParamSlot.KIND_PARAM_MAP:
+                        params.putMap((Map<String, String>) arg, slot.encode);
+                        break;
+                    case ParamSlot.KIND_FILES:
+                        if (arg instanceof Map) {
+                            params.putFiles((Map<String, File>) arg);
+                        }
+                        break;
+                    default:
+                        params.put(slot.name, arg, slot.encode);
+                        break;
+                }
+            }
+        }
+        return async ? submit(params, callback) : execute(params);
+    }
+
+    /**
+     * Invoke with the already bound params on ApiExecutor
+     * @param invokeParams bound params, consumed by this invocation
+     * @param callback called with the decoded result or the failure, maybe null
+     * @return Future of the decoded result, cancelling it aborts the request
+     */
+    public <T> Future<T> submit(InvokeParams invokeParams, ApiCallback<T> callback) {
+        return ApiExecutor.submit(this, invokeParams, callback);
+    }
+
+    /**
+     * Invoke with the already bound params
+     * @param invokeParams bound params, consumed by this invocation
+     * @return the decoded result
+     */
+    public Object execute(InvokeParams invokeParams)
+            throws AkInvokeException, AkServerStatusException {
+        RequestTimer timer = RequestTimer.start();
+        try {
+            return execute(invokeParams, timer);
+        } finally {
+            ApiStats.addTimings(apiName, timer.stop());
+        }
+    }
+
+    private Object execute(InvokeParams invokeParams, RequestTimer timer)
+            throws AkInvokeException, AkServerStatusException {
+        long phaseStart = System.nanoTime();
+        HashMap<String, String> paramsMap = invokeParams.paramsMap;
+        HashMap<String, String> paramsMapOri = invokeParams.paramsMapOri;
+        HashMap<String, File> filesToSend = invokeParams.filesToSend;
+        // Record this invocation
+        ApiInvokeInfo apiInvokeInfo = new ApiInvokeInfo();
+        apiInvokeInfo.apiName = apiName;
+        apiInvokeInfo.paramsMap.putAll(paramsMapOri);
+        apiInvokeInfo.url = url;
+        // parse '{}'s in url
+        String invokeUrl = resolveUrl(paramsMap);
+        String cacheKey = (cacheTtl > 0 && filesToSend.isEmpty()) ?
+                ApiCache.key(apiName, invokeUrl, paramsMap) : null;
+        // cleared hashmap to params
+        ArrayList<NameValuePair> params = new ArrayList<NameValuePair>(paramsMap.size() + 1);
+        for (Entry<String, String> entry : paramsMap.entrySet()) {
+            params.add(new BasicNameValuePair(entry.getKey(), entry.getValue()));
+        }
+        long now = System.nanoTime();
+        RequestTimer.add(RequestTimer.PHASE_BUILD_PARAMS, now - phaseStart);
+        phaseStart = now;
+
+        // get the signature string if using
+        if (signatureConstructor != null) {
+            InvokeSignature is;
+            try {
+                is = (InvokeSignature) signatureConstructor.newInstance();
+            } catch (Exception e) {
+                throw new AkInvokeException(AkInvokeException.CODE_FULFILL_INVOKE_EXCEPTION,
+                        e.toString(), e);
+            }
+            String sigValue = is.signature(akSignature, invokeUrl, params, paramsMapOri);
+            String sigParamName = is.getSignatureParamName();
+            if (sigValue != null && sigParamName != null
+                    && sigValue.length()>0 && sigParamName.length()>0 ) {
+                params.add(new BasicNameValuePair(sigParamName, sigValue));
+            }
+            RequestTimer.add(RequestTimer.PHASE_SIGN, System.nanoTime() - phaseStart);
+        }
+
+        Object result = (cacheKey != null) ? ApiCache.get(this, cacheKey, invokeUrl, params)
+                : send(invokeUrl, params, filesToSend);
+
+        // invoked, then add to history
+        apiInvokeInfo.phaseNanos = timer.stop();
+        apiInvokeInfo.costMillis = apiInvokeInfo.phaseNanos[RequestTimer.PHASE_TOTAL] / 1000000;
+        ApiStats.addApiInvocation(apiInvokeInfo);
+        return result;
+    }
+
+    /**
+     * choose POST GET PUT DELETE to use for this invoke, and decode the response.
+     * Json is decoded straight from the response stream, only String return type
+     * and the files posting read the response as String.
+     */
+    private Object send(String invokeUrl, ArrayList<NameValuePair> params,
+                        HashMap<String, File> filesToSend)
+            throws AkInvokeException, AkServerStatusException {
+        if (verb == Verb.GET) {
+            return getShared(buildGetUrl(invokeUrl, params), returnType);
+        } else if (filesToSend.isEmpty()) {
+            return returnsString ? post(invokeUrl, params)
+                    : postAsPojo(invokeUrl, params);
+        }
+
+        return decode(HttpInvoker.postWithFilesUsingURLConnection(
+                invokeUrl, params, filesToSend));
+    }
+
+    /**
+     * Send without files, and read the response as String
+     */
+    String sendForString(String invokeUrl, ArrayList<NameValuePair> params)
+            throws AkInvokeException, AkServerStatusException {
+        if (verb == Verb.GET) {
+            return (String) getShared(buildGetUrl(invokeUrl, params), String.class);
+        } else {
+            return post(invokeUrl, params);
+        }
+    }
+
+    /**
+     * POST, retried only if the method is @AkIdempotent
+     */
+    private String post(final String invokeUrl, final ArrayList<NameValuePair> params)
+            throws AkInvokeException, AkServerStatusException {
+        RetryPolicy retryPolicy = idempotent ? HttpInvoker.getRetryPolicy() : RetryPolicy.NONE;
+        return retryPolicy.execute(new RetryPolicy.Call<String>() {
+            @Override
+            public String call() throws AkServerStatusException, AkInvokeException {
+                return HttpInvoker.post(invokeUrl, params);
+            }
+        });
+    }
+
+    private Object postAsPojo(final String invokeUrl, final ArrayList<NameValuePair> params)
+            throws AkInvokeException, AkServerStatusException {
+        RetryPolicy retryPolicy = idempotent ? HttpInvoker.getRetryPolicy() : RetryPolicy.NONE;
+        return retryPolicy.execute(new RetryPolicy.Call<Object>() {
+            @Override
+            public Object call() throws AkServerStatusException, AkInvokeException {
+                return HttpInvoker.postAsPojo(invokeUrl, params, null, returnType);
+            }
+        });
+    }
+
+    /**
+     * GET, the concurrent identical GETs share one request and one decoded result.
+     * POST is never coalesced as it is not idempotent.
+     */
+    private static Object getShared(final String getUrl, final Class<?> type)
+            throws AkInvokeException, AkServerStatusException {
+        return sGetsInFlight.execute("GET " + getUrl + " as " + type.getName(),
+                new SingleFlight.Loader<Object>() {
+            @Override
+            public Object load() throws AkException {
+                return String.class.equals(type) ? HttpInvoker.get(getUrl)
+                        : HttpInvoker.getAsPojo(getUrl, null, type);
+            }
+        });
+    }
+
+    /**
+     * parse the return-string
+     */
+    Object decode(String retString) throws AkInvokeException {
+        try {
+            if (returnsString) { // the result return raw string
+                return retString;
+            } else {             // return object using json decode
+                long start = System.nanoTime();
+                Object pojo = JsonMapper.json2pojo(retString, returnType);
+                RequestTimer.add(RequestTimer.PHASE_JSON_BIND, System.nanoTime() - start);
+                return pojo;
+            }
+        } catch (JsonProcessingException e) {
+            Log.e(TAG, retString, e);  // log can print the error return-string
+            throw new AkInvokeException(AkInvokeException.CODE_JSONPROCESS_EXCEPTION,
+                    e.getMessage(), e);
+        } catch (IOException e) {
+            throw new AkInvokeException(AkInvokeException.CODE_IO_EXCEPTION,
+                    e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Replace all the {} block in url to the actual params,
+     * the params used in {block} will be removed from params.
+     */
+    private String resolveUrl(HashMap<String, String> params) throws AkInvokeException {
+        if (urlParamNames.length == 0) return url;
+
+        StringBuilder sbUrl = new StringBuilder(url.length() + 32);
+        for (int i = 0; i < urlParamNames.length; i++) {
+            sbUrl.append(urlLiterals[i]);
+            String paramValue = params.remove(urlParamNames[i]);
+            if (paramValue == null) { // 对于{name}没有匹配到的则抛出异常
+                throw new AkInvokeException(AkInvokeException.CODE_PARAM_IN_URL_NOT_FOUND,
+                        "Parameter {"+urlParamNames[i]+"}'s value not found of url "+url+".");
+            }
+            sbUrl.append(paramValue);
+        }
+        sbUrl.append(urlLiterals[urlParamNames.length]);
+        return sbUrl.toString();
+    }
+
+    static String buildGetUrl(String invokeUrl, ArrayList<NameValuePair> params) {
+        StringBuilder sbUrl = new StringBuilder(invokeUrl);
+        if (!(invokeUrl.endsWith("?") || invokeUrl.endsWith("&"))) {
+            sbUrl.append("?");
+        }
+        for (NameValuePair nvp : params) {
+            sbUrl.append(nvp.getName());
+            sbUrl.append("=");
+            sbUrl.append(nvp.getValue());
+            sbUrl.append("&");
+        } // now default using UTF-8, maybe improved later
+        return sbUrl.toString();
+    }
+}
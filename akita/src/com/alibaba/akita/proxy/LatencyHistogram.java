@@ -0,0 +1,105 @@
+/*
+ * Copyright 1999-2101 Alibaba Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alibaba.akita.proxy;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free log-linear histogram of latencies in microseconds.
+ * Each power of 2 is split into 8 buckets, so a percentile is within about 6%.
+ *
+ * @author zhe.yangz
+ */
+public class LatencyHistogram {
+    private static final int LINEAR_MAX = 16;   // values below are exact
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int MAX_EXP = 40;      // about 12 days
+    private static final int BUCKET_COUNT = LINEAR_MAX + (MAX_EXP - 4 + 1) * SUB_COUNT;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+
+    /**
+     * @param micros latency in microseconds
+     */
+    public void record(long micros) {
+        mCounts.incrementAndGet(bucketOf(Math.max(micros, 0)));
+    }
+
+    /**
+     * @return count of recorded latencies
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += mCounts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @param percentile such as 50, 95, 99
+     * @return latency in milliseconds, 0 if nothing recorded
+     */
+    public double getPercentileMillis(double percentile) {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mCounts.get(i);
+            total += counts[i];
+        }
+        if (total == 0) return 0;
+
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(rank, 1)) {
+                return midOf(i) / 1000.0;
+            }
+        }
+        return midOf(BUCKET_COUNT - 1) / 1000.0;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+    }
+
+    private static int bucketOf(long v) {
+        if (v < LINEAR_MAX) return (int) v;
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        if (exp > MAX_EXP) return BUCKET_COUNT - 1;
+        int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+        return LINEAR_MAX + (exp - 4) * SUB_COUNT + sub;
+    }
+
+    private static double midOf(int bucket) {
+        if (bucket < LINEAR_MAX) return bucket;
+        int exp = (bucket - LINEAR_MAX) / SUB_COUNT + 4;
+        int sub = (bucket - LINEAR_MAX) % SUB_COUNT;
+        long width = 1L << (exp - SUB_BITS);
+        long low = (1L << exp) + sub * width;
+        return low + width / 2.0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("p50=%.1fms p95=%.1fms p99=%.1fms n=%d",
+                getPercentileMillis(50), getPercentileMillis(95), getPercentileMillis(99),
+                getCount());
+    }
+}
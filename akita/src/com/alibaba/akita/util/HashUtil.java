@@ -51,6 +51,96 @@ public class HashUtil {
         }
     }
 
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    /**
+     * MurmurHash3 x64 128-bit of the UTF-8 bytes, much faster than md5 for cache keys,
+     * not for security.
+     * @param ori
+     * @return 32 length hex String
+     */
+    public static String murmur3(String ori) {
+        byte[] data;
+        try {
+            data = ori.getBytes(StringUtil.CHARSET_NAME_UTF8);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        int length = data.length;
+        long h1 = 0;
+        long h2 = 0;
+
+        int nblocks = length / 16;
+        for (int i = 0; i < nblocks; i++) {
+            long k1 = getLong(data, i * 16);
+            long k2 = getLong(data, i * 16 + 8);
+
+            k1 *= C1; k1 = Long.rotateLeft(k1, 31); k1 *= C2; h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27); h1 += h2; h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= C2; k2 = Long.rotateLeft(k2, 33); k2 *= C1; h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31); h2 += h1; h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        // tail
+        int tail = nblocks * 16;
+        long k1 = 0;
+        long k2 = 0;
+        for (int i = length - tail - 1; i >= 8; i--) {
+            k2 ^= (data[tail + i] & 0xffL) << ((i - 8) * 8);
+        }
+        for (int i = Math.min(length - tail, 8) - 1; i >= 0; i--) {
+            k1 ^= (data[tail + i] & 0xffL) << (i * 8);
+        }
+        if (length - tail > 8) {
+            k2 *= C2; k2 = Long.rotateLeft(k2, 33); k2 *= C1; h2 ^= k2;
+        }
+        if (length - tail > 0) {
+            k1 *= C1; k1 = Long.rotateLeft(k1, 31); k1 *= C2; h1 ^= k1;
+        }
+
+        // finalization
+        h1 ^= length; h2 ^= length;
+        h1 += h2; h2 += h1;
+        h1 = fmix64(h1); h2 = fmix64(h2);
+        h1 += h2; h2 += h1;
+
+        // h1 then h2 in little-endian bytes, the same as Guava's murmur3_128
+        char[] chars = new char[32];
+        for (int i = 0; i < 8; i++) {
+            int b1 = (int) (h1 >>> (i * 8)) & 0xff;
+            int b2 = (int) (h2 >>> (i * 8)) & 0xff;
+            chars[i * 2] = HEX_DIGITS[b1 >>> 4];
+            chars[i * 2 + 1] = HEX_DIGITS[b1 & 0xf];
+            chars[i * 2 + 16] = HEX_DIGITS[b2 >>> 4];
+            chars[i * 2 + 17] = HEX_DIGITS[b2 & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private static long getLong(byte[] data, int offset) {
+        return (data[offset] & 0xffL)
+                | (data[offset + 1] & 0xffL) << 8
+                | (data[offset + 2] & 0xffL) << 16
+                | (data[offset + 3] & 0xffL) << 24
+                | (data[offset + 4] & 0xffL) << 32
+                | (data[offset + 5] & 0xffL) << 40
+                | (data[offset + 6] & 0xffL) << 48
+                | (data[offset + 7] & 0xffL) << 56;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
     public static final String HMAC_SHA1 = "HmacSHA1";
     public static byte[] hmacSha1(String[] datas, byte[] key) {
         SecretKeySpec signingKey = new SecretKeySpec(key, HMAC_SHA1);
@@ -102,6 +102,27 @@ public class ImageUtil {
         return BitmapFactory.decodeByteArray(data, offset, length, options);
     }
 
+    /**
+     * automatically compute the inSampleSize when decode file
+     * @param pathName file path
+     * @param reqWidth reqWidth
+     * @param reqHeight reqHeight
+     * @return bitmap
+     */
+    public static Bitmap decodeSampledBitmapFromFile(String pathName, int reqWidth, int reqHeight) {
+        // First decode with inJustDecodeBounds=true to check dimensions
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(pathName, options);
+
+        // Calculate inSampleSize
+        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+
+        // Decode bitmap with inSampleSize set
+        options.inJustDecodeBounds = false;
+        return BitmapFactory.decodeFile(pathName, options);
+    }
+
     /**
      * automatically compute the inSampleSize when decode from resource
      * @param res res
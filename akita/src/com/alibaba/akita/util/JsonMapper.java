@@ -71,6 +71,15 @@ public class JsonMapper {
         return m.readValue(jsonAsString, pojoClass);
     }
 
+    /**
+     * Decode straight from the stream, without holding the whole json as String.
+     * The stream is not closed.
+     */
+    public static <T> T json2pojo(InputStream istream, Class<T> pojoClass)
+            throws JsonMappingException, JsonParseException, IOException {
+        return m.readValue(istream, pojoClass);
+    }
+
     public static Map<?, ?> json2map(String jsonAsString) throws JsonMappingException,
             JsonParseException, IOException {
         return m.readValue(jsonAsString, Map.class);
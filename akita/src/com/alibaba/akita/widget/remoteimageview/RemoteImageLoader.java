@@ -21,6 +21,7 @@ import android.widget.ImageView;
 import android.widget.ProgressBar;
 import com.alibaba.akita.cache.AkCacheManager;
 import com.alibaba.akita.cache.FilesCache;
+import com.alibaba.akita.cache.TieredCache;
 import com.alibaba.akita.widget.RemoteImageView;
 
 import java.util.concurrent.Executors;
@@ -39,8 +40,13 @@ public class RemoteImageLoader {
     // the default thread pool size
     private static final int DEFAULT_POOL_SIZE = 3;
     private static FilesCache<Bitmap> sImageCache;
+    private static TieredCache<String, Bitmap> sTieredCache;
+    private static TieredCache<String, Bitmap> sPackTieredCache;
     private ThreadPoolExecutor executor;
+    private Context context;
     private FilesCache<Bitmap> imageCache;
+    /** memory tiers in front of imageCache */
+    private TieredCache<String, Bitmap> tieredCache;
 
     private Drawable defaultDummyDrawable;
     private int errorDrawable;
@@ -66,11 +72,14 @@ public class RemoteImageLoader {
         } else {
             executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(DEFAULT_POOL_SIZE);
         }
+        this.context = context;
         if (createCache) {
             if (sImageCache == null) {
                 sImageCache = AkCacheManager.getImageFilesCache(context);
+                sTieredCache = AkCacheManager.newImageTieredCache(context, sImageCache);
             }
             imageCache = sImageCache;
+            tieredCache = sTieredCache;
             /*imageCache.enableDiskCache(context.getApplicationContext(),
                     ImageCache.DISK_CACHE_SDCARD);*/
         }
@@ -94,29 +103,57 @@ public class RemoteImageLoader {
         this.errorDrawable = drawable;
     }
 
+    /**
+     * The memory tiers are put in front of imageCache, see AkCacheManager.newImageTieredCache()
+     * @param imageCache
+     */
     public void setImageCache(FilesCache<Bitmap> imageCache) {
         this.imageCache = imageCache;
+        this.tieredCache = (imageCache == null)
+                ? null : AkCacheManager.newImageTieredCache(context, imageCache);
     }
 
     /**
-     * Clears the remoteimageview cache, if it's used. A good candidate for calling in
+     * Cache the images packed in a few large files instead, better for a lot of small
+     * images such as thumbnails, see AkCacheManager.getImagePackFilesCache()
+     */
+    public void usePackImageCache() {
+        synchronized (RemoteImageLoader.class) {
+            if (sPackTieredCache == null) {
+                sPackTieredCache = AkCacheManager.newImageTieredCache(context,
+                        AkCacheManager.getImagePackFilesCache(context));
+            }
+        }
+        this.imageCache = AkCacheManager.getImagePackFilesCache(context);
+        this.tieredCache = sPackTieredCache;
+    }
+
+    /**
+     * Clears the memory tiers of the remoteimageview cache, if it's used. A good candidate for calling in
      * {@link android.app.Application#onLowMemory()}.
      */
     public void clearImageCache() {
-        if (imageCache != null) {
-            //imageCache.clearSome();
+        if (tieredCache != null) {
+            tieredCache.clearMemoryTiers();
         }
     }
 
     /**
      * Returns the remoteimageview cache backing this remoteimageview loader.
      * 
-     * @return the {@link FilesCache<Bitmap>}
+     * @return the {@link FilesCache<Bitmap>}, the disk tier of {@link #getTieredImageCache()}
      */
     public FilesCache<Bitmap> getImageCache() {
         return imageCache;
     }
 
+    /**
+     * @return the memory and disk tiers the images are looked up in, for their hit counts
+     */
+    public TieredCache<String, Bitmap> getTieredImageCache() {
+        return tieredCache;
+    }
+
     /**
      * Triggers the remoteimageview loader for the given remoteimageview and view. The remoteimageview loading will be performed
      * concurrently to the UI main thread, using a fixed size thread pool. The loaded remoteimageview will be
@@ -215,14 +252,14 @@ public class RemoteImageLoader {
             // do not use cache, download image every time by passing the null value of imageCache
             executor.execute(new RemoteImageLoaderJob(imageUrl, httpReferer, progressBar, handler,
                     null));
-        } else if (imageCache != null) {
-            // do not go through message passing, handle directly instead
-            Bitmap bm = imageCache.get(imageUrl);
+        } else if (tieredCache != null) {
+            // only the memory tiers on this thread, the disk and the download on the executor
+            RemoteImageLoaderJob job = new RemoteImageLoaderJob(imageUrl, httpReferer, progressBar,
+                    handler, imageCache);
+            Bitmap bm = tieredCache.getAsync(imageUrl, job, job, executor);
             if (bm != null) {
+                // do not go through message passing, handle directly instead
                 handler.handleImageLoaded(bm, null);
-            } else {
-                executor.execute(new RemoteImageLoaderJob(imageUrl, httpReferer, progressBar, handler,
-                        imageCache));
             }
         }
     }
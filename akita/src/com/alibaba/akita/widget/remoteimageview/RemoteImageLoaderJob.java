@@ -5,10 +5,19 @@ import android.os.Bundle;
 import android.os.Message;
 import android.widget.ProgressBar;
 import com.alibaba.akita.cache.FilesCache;
+import com.alibaba.akita.cache.FilesCachePackImpl;
+import com.alibaba.akita.cache.FilesCacheSDFoldersImpl;
+import com.alibaba.akita.cache.TieredCache;
 import com.alibaba.akita.exception.AkException;
 import com.alibaba.akita.io.HttpInvoker;
+import com.alibaba.akita.io.SingleFlight;
 
-public class RemoteImageLoaderJob implements Runnable {
+/**
+ * Loads an image on a worker thread, by itself as a Runnable, or as the loader
+ * and callback of TieredCache.getAsync(). The downloaded image is saved into imageCache.
+ */
+public class RemoteImageLoaderJob implements Runnable, SingleFlight.Loader<Bitmap>,
+        TieredCache.Callback<String, Bitmap> {
 
     private static final String TAG = "akita.RemoteImageLoaderJob";
 
@@ -47,9 +56,47 @@ public class RemoteImageLoaderJob implements Runnable {
         notifyImageLoaded(imageUrl, bitmap);
     }
 
+    /**
+     * Download on a miss of the TieredCache
+     */
+    @Override
+    public Bitmap load() {
+        return downloadImage();
+    }
+
+    @Override
+    public void onLoaded(String key, Bitmap value) {
+        notifyImageLoaded(key, value);
+    }
+
+    @Override
+    public void onFailed(String key, AkException e) {
+        notifyImageLoaded(key, null);
+    }
+
     // use HttpInvoker to handle
     protected Bitmap downloadImage() {
         try {
+            if (imageCache instanceof FilesCacheSDFoldersImpl) {
+                // save the downloaded bytes as they are, no encoding again
+                FilesCacheSDFoldersImpl<Bitmap> filesCache = (FilesCacheSDFoldersImpl<Bitmap>) imageCache;
+                Bitmap bm = HttpInvoker.getBitmapFromUrl(imageUrl, httpReferer, progressBar,
+                        filesCache.newRawSink(imageUrl));
+                if (bm != null) {
+                    filesCache.putInMemory(imageUrl, bm);
+                }
+                return bm;
+            }
+            if (imageCache instanceof FilesCachePackImpl) {
+                FilesCachePackImpl<Bitmap> packCache = (FilesCachePackImpl<Bitmap>) imageCache;
+                Bitmap bm = HttpInvoker.getBitmapFromUrl(imageUrl, httpReferer, progressBar,
+                        packCache.newRawSink(imageUrl));
+                if (bm != null) {
+                    packCache.putInMemory(imageUrl, bm);
+                }
+                return bm;
+            }
+
             Bitmap bm = HttpInvoker.getBitmapFromUrl(imageUrl, httpReferer, progressBar);
             if (imageCache != null && bm != null) {
                 imageCache.put(imageUrl, bm);